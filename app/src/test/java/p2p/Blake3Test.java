@@ -0,0 +1,82 @@
+package p2p;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.CsvSource;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HexFormat;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Checks against the official BLAKE3 test vectors, whose input is the bytes 0, 1, ...,
+ * 250 repeated. Only the first 32 bytes of each extended output are compared.
+ */
+class Blake3Test {
+    @ParameterizedTest
+    @CsvSource({
+            "0,      af1349b9f5f9a1a6a0404dea36dcc9499bcb25c9adc112b7cc9a93cae41f3262",
+            "1,      2d3adedff11b61f14c886e35afa036736dcd87a74d27b5c1510225d0f592e213",
+            "64,     4eed7141ea4a5cd4b788606bd23f46e212af9cacebacdc7d1f4c6dc7f2511b98",
+            "65,     de1e5fa0be70df6d2be8fffd0e99ceaa8eb6e8c93a63f2d8d1c30ecb6b263dee",
+            "1023,   10108970eeda3eb932baac1428c7a2163b0e924c9a9e25b35bba72b28f70bd11",
+            "1024,   42214739f095a406f3fc83deb889744ac00df831c10daa55189b5d121c855af7",
+            "1025,   d00278ae47eb27b34faecf67b4fe263f82d5412916c1ffd97c8cb7fb814b8444",
+            "2048,   e776b6028c7cd22a4d0ba182a8bf62205d2ef576467e838ed6f2529b85fba24a",
+            "3072,   b98cb0ff3623be03326b373de6b9095218513e64f1ee2edd2525c7ad1e5cffd2",
+            "3073,   7124b49501012f81cc7f11ca069ec9226cecb8a2c850cfe644e327d22d3e1cd3",
+            "8192,   aae792484c8efe4f19e2ca7d371d8c467ffb10748d8a5a1ae579948f718a2a63",
+            "8193,   bab6c09cb8ce8cf459261398d2e7aef35700bf488116ceb94a36d0f5f1b7bc3b",
+            "31744,  62b6960e1a44bcc1eb1a611a8d6235b6b4b78f32e7abc4fb4c6cdcce94895c47",
+            "102400, bc3e3d41a1146b069abffad3c0d44860cf664390afce4d9661f7902e7943e085",
+    })
+    void matchesOfficialVectors(int length, String expected, @TempDir Path dir) throws IOException {
+        byte[] input = input(length);
+        assertEquals(expected, hex(Blake3.hash(input, 0, length)));
+        assertEquals(expected, hex(hashFile(dir, input)), "read from a file");
+    }
+
+    @Test
+    void hashesFromAnOffset() {
+        byte[] padded = new byte[1025 + 7];
+        System.arraycopy(input(1025), 0, padded, 7, 1025);
+        assertEquals("d00278ae47eb27b34faecf67b4fe263f82d5412916c1ffd97c8cb7fb814b8444",
+                hex(Blake3.hash(padded, 7, 1025)));
+    }
+
+    // The official vectors all fit in one 1 MB segment. Larger files are hashed as segments
+    // in parallel and must come out the same as the whole input in one piece, including
+    // unbalanced trees such as 3 MB and one chunk over four segments.
+    @ParameterizedTest
+    @CsvSource({ "1048577", "2097152", "3146753", "5243905" })
+    void parallelSegmentsMatchOnePiece(int length, @TempDir Path dir) throws IOException {
+        byte[] input = input(length);
+        assertEquals(hex(Blake3.hash(input, 0, length)), hex(hashFile(dir, input)));
+    }
+
+    private static byte[] input(int length) {
+        byte[] input = new byte[length];
+        for (int i = 0; i < length; i++) {
+            input[i] = (byte) (i % 251);
+        }
+        return input;
+    }
+
+    private static byte[] hashFile(Path dir, byte[] input) throws IOException {
+        Path file = Files.createTempFile(dir, "blake3", ".bin");
+        Files.write(file, input);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            return Blake3.hash(channel, input.length);
+        }
+    }
+
+    private static String hex(byte[] digest) {
+        return HexFormat.of().formatHex(digest);
+    }
+}
@@ -0,0 +1,111 @@
+package p2p;
+
+import network.FileClient.FileInfo;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CatalogTest {
+    private final Map<String, FileInfo> files = new LinkedHashMap<>();
+    private Catalog catalog;
+
+    @BeforeEach
+    void fill() {
+        for (int i = 0; i < 5; i++) {
+            add(i);
+        }
+        catalog = new Catalog(() -> new ArrayList<>(files.values()));
+    }
+
+    @Test
+    void sendsOnlyWhatChanged() {
+        Catalog.Changes first = catalog.changesSince(0, 0, id -> true);
+        assertTrue(first.full);
+        assertEquals(5, first.added.size());
+
+        add(5);
+        files.remove(id(1));
+        catalog.markDirty();
+        Catalog.Changes next = catalog.changesSince(first.epoch, first.version, id -> true);
+        assertFalse(next.full);
+        assertEquals(first.version + 1, next.version);
+        assertEquals(List.of(id(5)), hashes(next.added));
+        assertEquals(List.of(id(1)), next.removed);
+    }
+
+    @Test
+    void addedThenRemovedShowsAsRemoved() {
+        Catalog.Changes first = catalog.changesSince(0, 0, id -> true);
+
+        add(7);
+        catalog.markDirty();
+        catalog.getVersion();
+        files.remove(id(7));
+        catalog.markDirty();
+        Catalog.Changes next = catalog.changesSince(first.epoch, first.version, id -> true);
+        assertEquals(first.version + 2, next.version);
+        assertEquals(List.of(), next.added);
+        assertEquals(List.of(id(7)), next.removed);
+    }
+
+    @Test
+    void nothingChangedIsEmpty() {
+        Catalog.Changes first = catalog.changesSince(0, 0, id -> true);
+        catalog.markDirty();
+        Catalog.Changes next = catalog.changesSince(first.epoch, first.version, id -> true);
+        assertFalse(next.full);
+        assertEquals(first.version, next.version);
+        assertTrue(next.added.isEmpty() && next.removed.isEmpty());
+    }
+
+    @Test
+    void anotherEpochGetsEverything() {
+        Catalog.Changes first = catalog.changesSince(0, 0, id -> true);
+
+        // The node restarted: same files, new catalog, and the version counts from the start again
+        Catalog restarted = new Catalog(() -> new ArrayList<>(files.values()));
+        Catalog.Changes next = restarted.changesSince(first.epoch, first.version, id -> true);
+        assertNotEquals(first.epoch, next.epoch);
+        assertTrue(next.full);
+        assertEquals(new HashSet<>(files.keySet()), new HashSet<>(hashes(next.added)));
+    }
+
+    @Test
+    void aVersionFromTheFutureGetsEverything() {
+        Catalog.Changes first = catalog.changesSince(0, 0, id -> true);
+        Catalog.Changes next = catalog.changesSince(first.epoch, first.version + 1, id -> true);
+        assertTrue(next.full);
+        assertEquals(5, next.added.size());
+    }
+
+    @Test
+    void leavesOutRejectedFiles() {
+        Catalog.Changes first = catalog.changesSince(0, 0, id -> !id.equals(id(2)));
+        assertEquals(4, first.added.size());
+
+        files.remove(id(2));
+        files.remove(id(3));
+        catalog.markDirty();
+        Catalog.Changes next = catalog.changesSince(first.epoch, first.version, id -> !id.equals(id(2)));
+        assertEquals(List.of(id(3)), next.removed);
+    }
+
+    private void add(int n) {
+        files.put(id(n), new FileInfo(id(n), "file" + n + ".bin", 1000 + n));
+    }
+
+    static String id(int n) {
+        return String.format("%064x", n);
+    }
+
+    static List<String> hashes(List<FileInfo> infos) {
+        List<String> hashes = new ArrayList<>();
+        for (FileInfo info : infos) {
+            hashes.add(info.fileHash);
+        }
+        return hashes;
+    }
+}
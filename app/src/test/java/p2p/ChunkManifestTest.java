@@ -0,0 +1,115 @@
+package p2p;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ChunkManifestTest {
+    private static final int CHUNK = 1024;
+    // Three whole chunks and a short last one
+    private static final int SIZE = 3 * CHUNK + 500;
+
+    @Test
+    void verifiesEveryChunkOfTheFile(@TempDir Path dir) throws Exception {
+        byte[] content = content(SIZE);
+        ChunkManifest manifest = ChunkManifest.build(write(dir, content), CHUNK);
+
+        assertEquals(SIZE, manifest.getFileSize());
+        assertEquals(4, manifest.getChunkCount());
+        for (int i = 0; i < 4; i++) {
+            int length = Math.min(CHUNK, SIZE - i * CHUNK);
+            assertTrue(manifest.verifyChunk(i, content, i * CHUNK, length), "chunk " + i);
+        }
+    }
+
+    @Test
+    void rejectsADamagedChunkOnly(@TempDir Path dir) throws Exception {
+        byte[] content = content(SIZE);
+        ChunkManifest manifest = ChunkManifest.build(write(dir, content), CHUNK);
+
+        byte[] damaged = content.clone();
+        damaged[2 * CHUNK + 17] ^= 1;
+        assertFalse(manifest.verifyChunk(2, damaged, 2 * CHUNK, CHUNK));
+        assertTrue(manifest.verifyChunk(1, damaged, CHUNK, CHUNK));
+        assertTrue(manifest.verifyChunk(3, damaged, 3 * CHUNK, 500));
+    }
+
+    @Test
+    void rejectsAChunkAtTheWrongIndex(@TempDir Path dir) throws Exception {
+        byte[] content = content(SIZE);
+        ChunkManifest manifest = ChunkManifest.build(write(dir, content), CHUNK);
+
+        assertFalse(manifest.verifyChunk(0, content, CHUNK, CHUNK));
+        assertFalse(manifest.verifyChunk(-1, content, 0, CHUNK));
+        assertFalse(manifest.verifyChunk(4, content, 0, CHUNK));
+    }
+
+    @Test
+    void readsBackWhatItWrites(@TempDir Path dir) throws Exception {
+        byte[] content = content(SIZE);
+        ChunkManifest manifest = ChunkManifest.build(write(dir, content), CHUNK);
+
+        ChunkManifest copy = ChunkManifest.read(input(bytesOf(manifest)), SIZE);
+        assertArrayEquals(manifest.getRoot(), copy.getRoot());
+        assertEquals(CHUNK, copy.getChunkSize());
+        assertTrue(copy.verifyChunk(0, content, 0, CHUNK));
+    }
+
+    @Test
+    void rejectsAManifestWithADamagedLeaf(@TempDir Path dir) throws Exception {
+        ChunkManifest manifest = ChunkManifest.build(write(dir, content(SIZE)), CHUNK);
+
+        // Size, chunk size, count, root, then the leaves
+        byte[] bytes = bytesOf(manifest);
+        bytes[8 + 4 + 4 + ChunkManifest.HASH_LENGTH + 5] ^= 1;
+        assertThrows(IOException.class, () -> ChunkManifest.read(input(bytes), SIZE));
+    }
+
+    @Test
+    void rejectsAManifestForAnotherSize(@TempDir Path dir) throws Exception {
+        ChunkManifest manifest = ChunkManifest.build(write(dir, content(SIZE)), CHUNK);
+
+        assertThrows(IOException.class, () -> ChunkManifest.read(input(bytesOf(manifest)), SIZE + 1));
+    }
+
+    @Test
+    void rejectsAnOversizedChunkSize() throws IOException {
+        long fileSize = 2L * ChunkManifest.MAX_CHUNK_SIZE + 2;
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeLong(fileSize);
+        out.writeInt(ChunkManifest.MAX_CHUNK_SIZE + 1);
+        out.writeInt(2);
+
+        assertThrows(IOException.class, () -> ChunkManifest.read(input(bytes.toByteArray()), fileSize));
+    }
+
+    private static byte[] content(int length) {
+        byte[] content = new byte[length];
+        new Random(42).nextBytes(content);
+        return content;
+    }
+
+    private static File write(Path dir, byte[] content) throws IOException {
+        Path file = dir.resolve("file.bin");
+        Files.write(file, content);
+        return file.toFile();
+    }
+
+    private static byte[] bytesOf(ChunkManifest manifest) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        manifest.write(new DataOutputStream(bytes));
+        return bytes.toByteArray();
+    }
+
+    private static DataInputStream input(byte[] bytes) {
+        return new DataInputStream(new ByteArrayInputStream(Arrays.copyOf(bytes, bytes.length)));
+    }
+}
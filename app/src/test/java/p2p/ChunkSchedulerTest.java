@@ -0,0 +1,177 @@
+package p2p;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Drives the scheduler by hand with made-up owners: nothing is transferred, a request
+ * "arrives" when the test reports it complete.
+ */
+@Timeout(20)
+class ChunkSchedulerTest {
+    private static final long CHUNK = 1000;
+    private static final String A = "10.0.0.1";
+    private static final String B = "10.0.0.2";
+
+    private final Map<String, Semaphore> slots = new ConcurrentHashMap<>();
+
+    @Test
+    void handsOutEveryChunkOnce() throws InterruptedException {
+        ChunkScheduler scheduler = scheduler(List.of(A, B), 40, new BitSet(), 5);
+
+        int[] times = new int[40];
+        int longestRun = 0;
+        ChunkScheduler.Assignment a;
+        while ((a = scheduler.next()) != null) {
+            assertTrue(a.chunkCount >= 1 && a.chunkCount <= ChunkScheduler.MAX_RUN_CHUNKS);
+            longestRun = Math.max(longestRun, a.chunkCount);
+            for (int c = a.firstChunk; c < a.firstChunk + a.chunkCount; c++) {
+                times[c]++;
+                assertTrue(scheduler.markDone(c));
+            }
+            scheduler.completed(a, true, Set.of());
+        }
+
+        assertTrue(scheduler.isComplete());
+        for (int c = 0; c < times.length; c++) {
+            assertEquals(1, times[c], "chunk " + c);
+        }
+        // Requests that finish at once make the runs longer
+        assertTrue(longestRun > 1);
+        assertEquals(2, slots.get(A).availablePermits());
+        assertEquals(2, slots.get(B).availablePermits());
+    }
+
+    @Test
+    void skipsChunksAlreadyDone() throws InterruptedException {
+        BitSet done = new BitSet();
+        done.set(0, 9);
+        ChunkScheduler scheduler = scheduler(List.of(A), 10, done, 5);
+
+        ChunkScheduler.Assignment a = scheduler.next();
+        assertEquals(9, a.firstChunk);
+        assertEquals(1, a.chunkCount);
+        assertEquals(100, scheduler.lengthOf(9));
+        scheduler.markDone(9);
+        scheduler.completed(a, true, Set.of());
+        assertNull(scheduler.next());
+    }
+
+    @Test
+    void keepsToTheSlotsPerOwner() throws InterruptedException {
+        ChunkScheduler scheduler = scheduler(List.of(A, B), 40, new BitSet(), 5);
+
+        List<ChunkScheduler.Assignment> running = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            running.add(scheduler.next());
+        }
+        Map<String, Integer> perOwner = new HashMap<>();
+        for (ChunkScheduler.Assignment a : running) {
+            perOwner.merge(a.owner, 1, Integer::sum);
+        }
+        assertEquals(Map.of(A, 2, B, 2), perOwner);
+        assertEquals(0, slots.get(A).availablePermits());
+
+        scheduler.completed(running.get(0), true, Set.of());
+        assertEquals(1, slots.get(running.get(0).owner).availablePermits());
+    }
+
+    @Test
+    void backsOffAFailingOwner() throws InterruptedException {
+        ChunkScheduler scheduler = scheduler(List.of(A, B), 40, new BitSet(), 5);
+
+        // Unmeasured owners go in the order given
+        ChunkScheduler.Assignment failed = scheduler.next();
+        assertEquals(A, failed.owner);
+        scheduler.completed(failed, false, Set.of());
+        assertEquals(2, slots.get(A).availablePermits());
+
+        // A is backed off for a second, so B takes its slots and the next request waits for A
+        long start = System.nanoTime();
+        ChunkScheduler.Assignment b1 = scheduler.next();
+        ChunkScheduler.Assignment b2 = scheduler.next();
+        assertEquals(B, b1.owner);
+        assertEquals(B, b2.owner);
+        ChunkScheduler.Assignment retry = scheduler.next();
+        assertEquals(A, retry.owner);
+        assertTrue(System.nanoTime() - start >= 900_000_000L, "A was asked again before its backoff ran out");
+
+        finish(scheduler, b1);
+        finish(scheduler, b2);
+        finish(scheduler, retry);
+        ChunkScheduler.Assignment a;
+        while ((a = scheduler.next()) != null) {
+            finish(scheduler, a);
+        }
+        assertTrue(scheduler.isComplete(), "the failed chunks were fetched again");
+    }
+
+    @Test
+    void refetchesABadChunkAndGivesUpAfterMaxAttempts() throws InterruptedException {
+        ChunkScheduler scheduler = scheduler(List.of(A, B), 1, new BitSet(), 2);
+
+        ChunkScheduler.Assignment first = scheduler.next();
+        scheduler.completed(first, true, Set.of(0));
+        ChunkScheduler.Assignment second = scheduler.next();
+        assertEquals(0, second.firstChunk);
+        assertNotEquals(first.owner, second.owner, "the owner that sent a bad chunk is backed off");
+
+        scheduler.completed(second, true, Set.of(0));
+        assertNull(scheduler.next());
+        assertFalse(scheduler.isComplete());
+    }
+
+    @Test
+    void asksOwnersOnlyForChunksTheyHave() throws InterruptedException {
+        ChunkScheduler scheduler = scheduler(List.of(A, B), 20, new BitSet(), 5);
+        BitSet some = new BitSet();
+        some.set(0, 5);
+        scheduler.updateAvailability(A, some);
+        assertFalse(scheduler.hasWholeFile(A));
+        assertTrue(scheduler.hasWholeFile(B));
+
+        ChunkScheduler.Assignment a;
+        while ((a = scheduler.next()) != null) {
+            if (a.owner.equals(A)) {
+                assertTrue(a.firstChunk + a.chunkCount <= 5, "A was asked for " + a.firstChunk);
+            }
+            finish(scheduler, a);
+        }
+        assertTrue(scheduler.isComplete());
+    }
+
+    @Test
+    void takesOverTheLastChunksFromASlowOwner() throws InterruptedException {
+        ChunkScheduler scheduler = scheduler(List.of(A, B), 1, new BitSet(), 5);
+
+        ChunkScheduler.Assignment stuck = scheduler.next();
+        ChunkScheduler.Assignment copy = scheduler.next();
+        assertEquals(stuck.firstChunk, copy.firstChunk);
+        assertNotEquals(stuck.owner, copy.owner);
+
+        assertTrue(scheduler.markDone(0));
+        scheduler.completed(copy, true, Set.of());
+        assertFalse(scheduler.markDone(0), "the late copy doesn't count twice");
+        scheduler.completed(stuck, true, Set.of());
+        assertNull(scheduler.next());
+    }
+
+    private static void finish(ChunkScheduler scheduler, ChunkScheduler.Assignment a) {
+        for (int c = a.firstChunk; c < a.firstChunk + a.chunkCount; c++) {
+            scheduler.markDone(c);
+        }
+        scheduler.completed(a, true, Set.of());
+    }
+
+    private ChunkScheduler scheduler(List<String> owners, int chunks, BitSet done, int maxAttempts) {
+        // The last chunk is short
+        long fileSize = chunks * CHUNK - 900;
+        return new ChunkScheduler(owners, fileSize, CHUNK, done, 2, slots, maxAttempts);
+    }
+}
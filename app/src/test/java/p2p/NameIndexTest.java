@@ -0,0 +1,82 @@
+package p2p;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Queries of one and two characters have no trigram and are checked entry by entry,
+ * longer ones go through the trigram lists; both must find the same things.
+ */
+class NameIndexTest {
+    private NameIndex<Integer> index;
+
+    @BeforeEach
+    void fill() {
+        index = new NameIndex<>();
+        index.put(1, "Holiday Photos.zip");
+        index.put(2, "holiday-video.mp4");
+        index.put(3, "notes.txt");
+        index.put(4, "Photo booth.png");
+    }
+
+    @Test
+    void findsOneCharacter() {
+        assertEquals(List.of(1, 3, 4), index.search("t", 10));
+        assertEquals(List.of(2), index.search("v", 10));
+    }
+
+    @Test
+    void findsTwoCharacters() {
+        assertEquals(List.of(1, 2, 4), index.search("Ho", 10));
+        assertEquals(List.of(3), index.search("tx", 10));
+    }
+
+    @Test
+    void findsThreeOrMoreCharacters() {
+        assertEquals(List.of(1, 4), index.search("PHOTO", 10));
+        assertEquals(List.of(1, 2), index.search("holiday", 10));
+        assertEquals(List.of(), index.search("holidays", 10));
+    }
+
+    @Test
+    void needsEveryWord() {
+        assertEquals(List.of(1), index.search("photo zip", 10));
+        assertEquals(List.of(2), index.search("ho mp4", 10));
+        assertEquals(List.of(), index.search("photo mp4", 10));
+    }
+
+    @Test
+    void emptyQueryMatchesEverything() {
+        assertEquals(List.of(1, 2, 3, 4), index.search("  ", 10));
+    }
+
+    @Test
+    void stopsAtTheLimit() {
+        assertEquals(List.of(1), index.search("o", 1));
+        assertEquals(List.of(1), index.search("photo", 1));
+    }
+
+    @Test
+    void skipsRejectedKeys() {
+        assertEquals(List.of(4), index.search("photo", 10, key -> key != 1));
+        assertEquals(List.of(3, 4), index.search("t", 10, key -> key != 1));
+    }
+
+    @Test
+    void followsRenamesAndRemovals() {
+        index.put(3, "holiday notes.txt");
+        index.remove(2);
+        assertEquals(List.of(1, 3), index.search("holiday", 10));
+        // A renamed entry counts as the newest
+        assertEquals(List.of(1, 4, 3), index.search("ho", 10));
+
+        index.retainAll(Set.of(3, 4));
+        assertEquals(List.of(3), index.search("holiday", 10));
+        assertEquals(2, index.size());
+    }
+}
@@ -0,0 +1,48 @@
+package bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.stream.Stream;
+
+// Generated input files, filled with seeded random bytes so runs are comparable
+final class BenchFiles {
+    static final String LOOPBACK = "127.0.0.1";
+    static final int SERVER_PORT = 24113;
+
+    private BenchFiles() {}
+
+    static Path tempDir(String prefix) throws IOException {
+        return Files.createTempDirectory("p2p-bench-" + prefix);
+    }
+
+    static File randomFile(Path dir, String name, long size) throws IOException {
+        File file = dir.resolve(name).toFile();
+        Random random = new Random(size);
+        byte[] block = new byte[1024 * 1024];
+        try (var out = Files.newOutputStream(file.toPath())) {
+            long remaining = size;
+            while (remaining > 0) {
+                random.nextBytes(block);
+                int n = (int) Math.min(block.length, remaining);
+                out.write(block, 0, n);
+                remaining -= n;
+            }
+        }
+        return file;
+    }
+
+    static void deleteTree(Path dir) {
+        if (dir == null || !Files.exists(dir)) return;
+        try (Stream<Path> paths = Files.walk(dir)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
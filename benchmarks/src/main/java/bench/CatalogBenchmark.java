@@ -0,0 +1,73 @@
+package bench;
+
+import org.openjdk.jmh.annotations.*;
+import p2p.FileMetaData;
+import p2p.FileMgr;
+import p2p.HashIndex;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+// FileMgr lookups and rescans for shared folders of different sizes
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CatalogBenchmark {
+    @Param({"1000", "10000"})
+    public int fileCount;
+
+    private Path dir;
+    private FileMgr fileMgr;
+    private List<File> files;
+    private String[] hashes;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        dir = BenchFiles.tempDir("catalog");
+        files = new ArrayList<>(fileCount);
+        for (int i = 0; i < fileCount; i++) {
+            Path p = dir.resolve("file_" + i + ".txt");
+            Files.writeString(p, "content " + i);
+            files.add(p.toFile());
+        }
+
+        fileMgr = new FileMgr(new HashIndex(dir.resolve("index.dat").toFile()));
+        fileMgr.sync(dir.toFile(), files);
+
+        List<FileMetaData> shared = fileMgr.getSharedFiles();
+        hashes = new String[shared.size()];
+        for (int i = 0; i < hashes.length; i++) {
+            hashes[i] = shared.get(i).getFileHash();
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        BenchFiles.deleteTree(dir);
+    }
+
+    @Benchmark
+    public FileMetaData lookupByHash() {
+        return fileMgr.getFileMetaDataByHash(hashes[ThreadLocalRandom.current().nextInt(hashes.length)]);
+    }
+
+    @Benchmark
+    public List<FileMetaData> listSharedFiles() {
+        return fileMgr.getSharedFiles();
+    }
+
+    // A rescan where nothing changed, every hash comes out of the index
+    @Benchmark
+    public int rescanUnchanged() {
+        fileMgr.sync(dir.toFile(), files);
+        return fileMgr.getSharedFiles().size();
+    }
+}
@@ -0,0 +1,90 @@
+package bench;
+
+import network.FileClient;
+import network.FileServer;
+import network.Workers;
+import org.openjdk.jmh.annotations.*;
+import p2p.DownloadEngine;
+import p2p.Node;
+
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Single requests against a FileServer over loopback: serving and fetching one chunk,
+ * plus the small control requests. Run with -t to see how the server scales with
+ * concurrent clients, and compare the thread-per-connection server on platform and
+ * virtual threads with the selector server.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ChunkTransferBenchmark {
+    @Param({"67108864"})
+    public long fileSize;
+
+    @Param({"threads", "virtual", "selector"})
+    public String serverMode;
+
+    private Path dir;
+    private Node node;
+    private String fileHash;
+    private long chunkCount;
+
+    @State(Scope.Thread)
+    public static class ClientBuffer {
+        final byte[] buffer = new byte[DownloadEngine.DEFAULT_CHUNK_SIZE];
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        dir = BenchFiles.tempDir("serve");
+        BenchFiles.randomFile(dir, "served.bin", fileSize);
+
+        if ("selector".equals(serverMode)) {
+            FileServer.useSelector(2, 1024, 64);
+        }
+        // Needs a Java 21 JVM, otherwise this runs on platform threads like "threads"
+        Workers.useVirtualThreads("virtual".equals(serverMode));
+        node = new Node("bench", BenchFiles.LOOPBACK, BenchFiles.SERVER_PORT, false);
+        node.setSharedFolder(dir.toString());
+        node.startServer();
+        fileHash = node.getFileManager().getSharedFiles().get(0).getFileHash();
+        chunkCount = (fileSize + DownloadEngine.DEFAULT_CHUNK_SIZE - 1) / DownloadEngine.DEFAULT_CHUNK_SIZE;
+
+        // Wait for the server socket to come up
+        while (FileClient.requestFileSizeByHash(BenchFiles.LOOPBACK, BenchFiles.SERVER_PORT, fileHash) <= 0) {
+            Thread.sleep(50);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        node.disconnect();
+        BenchFiles.deleteTree(dir);
+    }
+
+    @Benchmark
+    public boolean downloadChunk(ClientBuffer client) {
+        long index = ThreadLocalRandom.current().nextLong(chunkCount);
+        long offset = index * DownloadEngine.DEFAULT_CHUNK_SIZE;
+        long length = Math.min(DownloadEngine.DEFAULT_CHUNK_SIZE, fileSize - offset);
+        return FileClient.downloadChunk(BenchFiles.LOOPBACK, BenchFiles.SERVER_PORT,
+                fileHash, offset, length, client.buffer);
+    }
+
+    @Benchmark
+    public long requestFileSize() {
+        return FileClient.requestFileSizeByHash(BenchFiles.LOOPBACK, BenchFiles.SERVER_PORT, fileHash);
+    }
+
+    @Benchmark
+    public List<FileClient.FileInfo> listSharedFiles() {
+        return FileClient.requestSharedFiles(BenchFiles.LOOPBACK, BenchFiles.SERVER_PORT);
+    }
+}
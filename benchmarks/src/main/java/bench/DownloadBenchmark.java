@@ -0,0 +1,96 @@
+package bench;
+
+import network.FileClient;
+import org.openjdk.jmh.annotations.*;
+import p2p.*;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A whole file through DownloadEngine from a loopback seeder into a DownloadStorage,
+ * and the storage write path on its own (what used to be chunk files plus reassembly).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class DownloadBenchmark {
+    @Param({"16777216", "134217728"})
+    public long fileSize;
+
+    @Param({"8"})
+    public int chunksInFlight;
+
+    private Path sharedDir;
+    private Path downloadDir;
+    private Node node;
+    private String fileHash;
+    private ChunkManifest manifest;
+    private byte[] chunk;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        sharedDir = BenchFiles.tempDir("seed");
+        downloadDir = BenchFiles.tempDir("leech");
+        BenchFiles.randomFile(sharedDir, "payload.bin", fileSize);
+
+        node = new Node("bench", BenchFiles.LOOPBACK, BenchFiles.SERVER_PORT, false);
+        node.setSharedFolder(sharedDir.toString());
+        node.startServer();
+        fileHash = node.getFileManager().getSharedFiles().get(0).getFileHash();
+
+        while ((manifest = FileClient.requestChunkManifest(BenchFiles.LOOPBACK, BenchFiles.SERVER_PORT,
+                fileHash, fileSize)) == null) {
+            Thread.sleep(50);
+        }
+        chunk = new byte[DownloadEngine.DEFAULT_CHUNK_SIZE];
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        node.disconnect();
+        BenchFiles.deleteTree(sharedDir);
+        BenchFiles.deleteTree(downloadDir);
+    }
+
+    // Every invocation starts from an empty download folder
+    @TearDown(Level.Invocation)
+    public void clearDownloads() {
+        File[] leftovers = downloadDir.toFile().listFiles();
+        if (leftovers == null) return;
+        for (File f : leftovers) {
+            f.delete();
+        }
+    }
+
+    @Benchmark
+    public boolean downloadFile() throws Exception {
+        DownloadEngine engine = new DownloadEngine(fileHash, fileSize, manifest,
+                List.of(BenchFiles.LOOPBACK), BenchFiles.SERVER_PORT,
+                chunksInFlight, chunksInFlight, new ConcurrentHashMap<>());
+        DownloadState state = DownloadState.open(downloadDir.toFile(), "payload.bin", fileHash,
+                fileSize, manifest.getChunkSize());
+        try (DownloadStorage storage = new DownloadStorage(downloadDir.toFile(), fileHash, "payload.bin", fileSize)) {
+            return engine.run(storage, state, new Node.DownloadProgress(fileHash, "payload.bin"));
+        }
+    }
+
+    @Benchmark
+    public long writeChunksInPlace() throws Exception {
+        long written = 0;
+        try (DownloadStorage storage = new DownloadStorage(downloadDir.toFile(), fileHash, "payload.bin", fileSize)) {
+            for (long offset = 0; offset < fileSize; offset += chunk.length) {
+                int length = (int) Math.min(chunk.length, fileSize - offset);
+                storage.write(offset, chunk, length);
+                written += length;
+            }
+        }
+        return written;
+    }
+}
@@ -0,0 +1,52 @@
+package bench;
+
+import org.openjdk.jmh.annotations.*;
+import p2p.ChunkManifest;
+import p2p.DownloadEngine;
+import p2p.FileTransferMgr;
+import p2p.HashService;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+// Whole-file content hash and per-chunk manifest over files of different sizes
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HashingBenchmark {
+    @Param({"1048576", "67108864"})
+    public long fileSize;
+
+    private Path dir;
+    private File file;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        dir = BenchFiles.tempDir("hash");
+        file = BenchFiles.randomFile(dir, "input.bin", fileSize);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        BenchFiles.deleteTree(dir);
+    }
+
+    @Benchmark
+    public String calculateFileHash() throws Exception {
+        return FileTransferMgr.calculateFileHash(file);
+    }
+
+    @Benchmark
+    public String blake3FileHash() throws Exception {
+        return HashService.hashFile(file, HashService.BLAKE3);
+    }
+
+    @Benchmark
+    public ChunkManifest buildChunkManifest() throws Exception {
+        return ChunkManifest.build(file, DownloadEngine.DEFAULT_CHUNK_SIZE);
+    }
+}
@@ -1,5 +1,7 @@
 package gui;
 
+import p2p.DownloadManager;
+import p2p.DownloadManager.JobInfo;
 import p2p.Node;
 import p2p.Node.DownloadProgress;
 import p2p.Node.FoundFile;
@@ -8,15 +10,26 @@ import javax.swing.*;
 import java.awt.*;
 import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.function.Consumer;
 
 public class BottomPanel extends JPanel {
+    // Rows of the found list, more than this is only scrolled past
+    private static final int MAX_SHOWN = 1000;
 
     private final Node node;
 
     private DefaultListModel<String> downloadingModel;
     private DefaultListModel<String> foundModel;
-
+    // The jobs behind the rows of the downloading list
+    private final List<JobInfo> shownJobs = new ArrayList<>();
+    // The files behind the rows of the found list
+    private final List<FoundFile> shownFound = new ArrayList<>();
+    // What the lists are filtered by, null for nothing
+    private String keyword;
+
+    private JList<String> downloadingFilesList;
     private JList<String> foundFilesList;
     private JTextField searchField;
 
@@ -26,7 +39,7 @@ public class BottomPanel extends JPanel {
         add(createCenterPanel(), BorderLayout.CENTER);
         add(createSearchPanel(), BorderLayout.SOUTH);
 
-        Timer timer = new Timer(1000, e -> refreshLists(null)); // refresh every second
+        Timer timer = new Timer(1000, e -> refreshLists()); // refresh every second
         timer.start();
     }
 
@@ -37,7 +50,18 @@ public class BottomPanel extends JPanel {
         downloadingPanel.setBorder(BorderFactory.createTitledBorder("Downloading files"));
 
         downloadingModel = new DefaultListModel<>();
-        JList<String> downloadingFilesList = new JList<>(downloadingModel);
+        downloadingFilesList = new JList<>(downloadingModel);
+        downloadingFilesList.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+        downloadingFilesList.setComponentPopupMenu(createQueueMenu());
+        downloadingFilesList.addMouseListener(new MouseAdapter() {
+            @Override
+            public void mousePressed(MouseEvent e) {
+                if (SwingUtilities.isRightMouseButton(e)) {
+                    int index = downloadingFilesList.locationToIndex(e.getPoint());
+                    if (index >= 0) downloadingFilesList.setSelectedIndex(index);
+                }
+            }
+        });
 
         downloadingPanel.add(new JScrollPane(downloadingFilesList), BorderLayout.CENTER);
         panel.add(downloadingPanel);
@@ -55,17 +79,12 @@ public class BottomPanel extends JPanel {
             public void mouseClicked(MouseEvent e) {
                 if (e.getClickCount() == 2) {
                     int index = foundFilesList.locationToIndex(e.getPoint());
-                    if (index >= 0) {
-                        String displayName = foundModel.getElementAt(index);
-                        FoundFile foundFile = findFoundFileByName(displayName);
-
-                        if (foundFile != null) {
-                            node.multiSourceDownload(foundFile.fileHash, foundFile.fileName);
-                            JOptionPane.showMessageDialog(BottomPanel.this,
-                                    "Download started for: " + foundFile.fileName,
-                                    "Info",
-                                    JOptionPane.INFORMATION_MESSAGE);
-                        }
+                    if (index >= 0 && index < shownFound.size()) {
+                        FoundFile foundFile = shownFound.get(index);
+                        // Runs on the manager's threads, never on the event thread
+                        node.getDownloadManager().submit(foundFile.getFileHash(), foundFile.getFileName(),
+                                foundFile.getFileSize(), DownloadManager.Priority.NORMAL);
+                        refreshLists();
                     }
                 }
             }
@@ -76,13 +95,41 @@ public class BottomPanel extends JPanel {
         return panel;
     }
 
-    private FoundFile findFoundFileByName(String filename) {
-        List<FoundFile> allFoundFiles = node.getFoundFiles();
-        for (FoundFile foundFile : allFoundFiles) {
-            if (foundFile.fileName.equals(filename))
-                return foundFile;
+    // Right click on a download: pause, resume, cancel and move it in the queue
+    private JPopupMenu createQueueMenu() {
+        DownloadManager manager = node.getDownloadManager();
+        JPopupMenu menu = new JPopupMenu();
+        menu.add(queueItem("Pause", manager::pause));
+        menu.add(queueItem("Resume", manager::resume));
+        menu.add(queueItem("Cancel", manager::cancel));
+        menu.addSeparator();
+        menu.add(queueItem("Move to front", manager::moveToFront));
+        menu.add(queueItem("Move up", manager::moveUp));
+        menu.add(queueItem("Move down", manager::moveDown));
+        menu.addSeparator();
+        for (DownloadManager.Priority priority : DownloadManager.Priority.values()) {
+            menu.add(queueItem("Priority: " + priority.name().toLowerCase(),
+                    hash -> manager.setPriority(hash, priority)));
         }
-        return null;
+        menu.addSeparator();
+        JMenuItem clear = new JMenuItem("Clear finished");
+        clear.addActionListener(e -> {
+            manager.clearFinished();
+            refreshLists();
+        });
+        menu.add(clear);
+        return menu;
+    }
+
+    private JMenuItem queueItem(String label, Consumer<String> action) {
+        JMenuItem item = new JMenuItem(label);
+        item.addActionListener(e -> {
+            int index = downloadingFilesList.getSelectedIndex();
+            if (index < 0 || index >= shownJobs.size()) return;
+            action.accept(shownJobs.get(index).fileHash);
+            refreshLists();
+        });
+        return item;
     }
 
     private JPanel createSearchPanel() {
@@ -92,36 +139,74 @@ public class BottomPanel extends JPanel {
         searchField = new JTextField();
         JButton searchBtn = new JButton("Search");
         searchBtn.addActionListener(e -> {
-            String keyword = searchField.getText().trim();
-            refreshLists(keyword);
+            String text = searchField.getText().trim();
+            keyword = text.isEmpty() ? null : text.toLowerCase();
+            refreshLists();
+        });
+        searchField.addActionListener(e -> searchBtn.doClick());
+
+        // Peers that haven't sent their whole catalog yet may still have it
+        JButton askPeersBtn = new JButton("Ask peers");
+        askPeersBtn.addActionListener(e -> {
+            String text = searchField.getText().trim();
+            if (text.isEmpty()) return;
+            keyword = text.toLowerCase();
+            askPeersBtn.setEnabled(false);
+            new SwingWorker<Void, Void>() {
+                @Override
+                protected Void doInBackground() {
+                    node.searchPeers(text, MAX_SHOWN);
+                    return null;
+                }
+
+                @Override
+                protected void done() {
+                    askPeersBtn.setEnabled(true);
+                    refreshLists();
+                }
+            }.execute();
         });
 
+        JPanel buttons = new JPanel(new GridLayout(1, 2, 5, 5));
+        buttons.add(searchBtn);
+        buttons.add(askPeersBtn);
+
         panel.add(searchField, BorderLayout.CENTER);
-        panel.add(searchBtn, BorderLayout.EAST);
+        panel.add(buttons, BorderLayout.EAST);
 
         return panel;
     }
 
-    private void refreshLists(String keyword) {
-        if (keyword != null)
-            keyword = keyword.toLowerCase();
+    private void refreshLists() {
+        // Keep the selection across the refresh, the popup menu acts on it
+        String selectedHash = null;
+        int selected = downloadingFilesList.getSelectedIndex();
+        if (selected >= 0 && selected < shownJobs.size()) {
+            selectedHash = shownJobs.get(selected).fileHash;
+        }
 
         downloadingModel.clear();
-        List<DownloadProgress> downloads = node.listActiveDownloads();
-        for (DownloadProgress progress : downloads) {
-            double percentage = progress.getPercent();
-            String display = String.format("%s (%.2f%%)", progress.fileName, percentage);
-            if (keyword == null || progress.fileName.toLowerCase().contains(keyword)) {
-                downloadingModel.addElement(display);
+        shownJobs.clear();
+        for (JobInfo job : node.getDownloadManager().listJobs()) {
+            if (keyword != null && !job.fileName.toLowerCase().contains(keyword)) continue;
+            DownloadProgress progress = node.getDownloadProgress(job.fileHash);
+            String display = (progress != null)
+                    ? String.format("%s (%.2f%%)", job.fileName, progress.getPercent())
+                    : job.fileName;
+            display += " - " + job.status.name().toLowerCase() + ", " + job.priority.name().toLowerCase() + " priority";
+            shownJobs.add(job);
+            downloadingModel.addElement(display);
+            if (job.fileHash.equals(selectedHash)) {
+                downloadingFilesList.setSelectedIndex(shownJobs.size() - 1);
             }
         }
 
+        // The index answers without going through every found file
         foundModel.clear();
-        List<FoundFile> found = node.getFoundFiles();
-        for (FoundFile foundFile : found) {
-            if (keyword == null || foundFile.fileName.toLowerCase().contains(keyword)) {
-                foundModel.addElement(foundFile.fileName);
-            }
+        shownFound.clear();
+        for (FoundFile foundFile : node.searchFoundFiles(keyword != null ? keyword : "", MAX_SHOWN)) {
+            shownFound.add(foundFile);
+            foundModel.addElement(foundFile.getFileName());
         }
     }
 }
\ No newline at end of file
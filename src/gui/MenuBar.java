@@ -1,8 +1,11 @@
 package gui;
 
+import network.Bandwidth;
+import network.Metrics;
 import p2p.Node;
 
 import javax.swing.*;
+import java.awt.*;
 
 public class MenuBar extends JMenuBar {
     private final Node node;
@@ -15,6 +18,12 @@ public class MenuBar extends JMenuBar {
         JMenu fileMenu = getjMenu();
         add(fileMenu);
 
+        JMenu settingsMenu = new JMenu("Settings");
+        JMenuItem bandwidthItem = new JMenuItem("Bandwidth limits...");
+        bandwidthItem.addActionListener(e -> handleBandwidth());
+        settingsMenu.add(bandwidthItem);
+        add(settingsMenu);
+
         JMenu helpMenu = new JMenu("Help");
         JMenuItem aboutItem = new JMenuItem("About");
         aboutItem.addActionListener(e -> JOptionPane.showMessageDialog(
@@ -27,6 +36,9 @@ public class MenuBar extends JMenuBar {
                 JOptionPane.INFORMATION_MESSAGE
         ));
         helpMenu.add(aboutItem);
+        JMenuItem metricsItem = new JMenuItem("Metrics...");
+        metricsItem.addActionListener(e -> handleMetrics());
+        helpMenu.add(metricsItem);
         add(helpMenu);
     }
 
@@ -86,4 +98,49 @@ public class MenuBar extends JMenuBar {
                     JOptionPane.ERROR_MESSAGE);
         }
     }
-}
\ No newline at end of file
+
+    // Limits in KB/s, 0 for none; they apply to running transfers right away
+    private void handleBandwidth() {
+        JSpinner upload = kbpsSpinner(Bandwidth.getUploadLimit());
+        JSpinner download = kbpsSpinner(Bandwidth.getDownloadLimit());
+        JSpinner peerUpload = kbpsSpinner(Bandwidth.getPeerUploadLimit());
+        JSpinner peerDownload = kbpsSpinner(Bandwidth.getPeerDownloadLimit());
+
+        JPanel panel = new JPanel(new GridLayout(0, 2, 5, 5));
+        panel.add(new JLabel("Upload, total (KB/s):"));
+        panel.add(upload);
+        panel.add(new JLabel("Download, total (KB/s):"));
+        panel.add(download);
+        panel.add(new JLabel("Upload, per peer (KB/s):"));
+        panel.add(peerUpload);
+        panel.add(new JLabel("Download, per peer (KB/s):"));
+        panel.add(peerDownload);
+        panel.add(new JLabel("0 means no limit."));
+
+        int choice = JOptionPane.showConfirmDialog(parentFrame, panel, "Bandwidth limits",
+                JOptionPane.OK_CANCEL_OPTION, JOptionPane.PLAIN_MESSAGE);
+        if (choice != JOptionPane.OK_OPTION) return;
+
+        Bandwidth.setUploadLimit(kbps(upload) * 1024L);
+        Bandwidth.setDownloadLimit(kbps(download) * 1024L);
+        Bandwidth.setPeerUploadLimit(kbps(peerUpload) * 1024L);
+        Bandwidth.setPeerDownloadLimit(kbps(peerDownload) * 1024L);
+    }
+
+    // The same numbers jconsole shows under p2p:type=Metrics
+    private void handleMetrics() {
+        JTextArea text = new JTextArea(Metrics.dump(), 25, 60);
+        text.setEditable(false);
+        text.setFont(new Font(Font.MONOSPACED, Font.PLAIN, 12));
+        JOptionPane.showMessageDialog(parentFrame, new JScrollPane(text), "Metrics",
+                JOptionPane.PLAIN_MESSAGE);
+    }
+
+    private static JSpinner kbpsSpinner(long bytesPerSecond) {
+        return new JSpinner(new SpinnerNumberModel((int) (bytesPerSecond / 1024), 0, 10_000_000, 64));
+    }
+
+    private static int kbps(JSpinner spinner) {
+        return (Integer) spinner.getValue();
+    }
+}
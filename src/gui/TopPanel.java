@@ -37,7 +37,7 @@ public class TopPanel extends JPanel {
 
     private JButton getjButton() {
         JButton setSharedFolderButton = new JButton("Browse");
-        setSharedFolderButton.addActionListener(_ -> {
+        setSharedFolderButton.addActionListener(e -> {
             String path = selectFolder();
             if (path != null) {
                 try {
@@ -75,7 +75,7 @@ public class TopPanel extends JPanel {
 
     private JButton getBrowseButton() {
         JButton setDestinationButton = new JButton("Browse");
-        setDestinationButton.addActionListener(_ -> {
+        setDestinationButton.addActionListener(e -> {
             String path = selectFolder();
             if (path != null) {
                 try {
@@ -1,8 +1,14 @@
 package main;
 
+import network.Bandwidth;
+import network.FileServer;
+import network.Metrics;
+import network.Workers;
+import p2p.HashService;
 import p2p.Node;
 
 import javax.swing.SwingUtilities;
+import java.io.File;
 import gui.MainWindow;
 
 public class Main {
@@ -15,8 +21,38 @@ public class Main {
                 ? System.getenv("NODE_IP")
                 : "10.22.249.198";
 
+        if (System.getenv("VIRTUAL_THREADS") != null) {
+            Workers.useVirtualThreads(true);
+        }
+        Metrics.registerMBean();
+
         if (isDocker) {
+            // Content IDs of shared files, sha256 unless set
+            if (System.getenv("CONTENT_HASH") != null) {
+                HashService.setDefault(System.getenv("CONTENT_HASH"));
+            }
             Node node = new Node(nodeID, nodeIP, 4113, true);
+            if (System.getenv("MAX_CHUNKS_IN_FLIGHT") != null) {
+                node.setMaxChunksInFlight(Integer.parseInt(System.getenv("MAX_CHUNKS_IN_FLIGHT")));
+            }
+            if (System.getenv("MAX_CHUNKS_PER_PEER") != null) {
+                node.setMaxChunksPerPeer(Integer.parseInt(System.getenv("MAX_CHUNKS_PER_PEER")));
+            }
+            node.setMaxParallelDownloads(envInt("MAX_PARALLEL_DOWNLOADS", 3));
+            // Bandwidth limits in KB/s, 0 or unset for none
+            Bandwidth.setUploadLimit(envInt("UPLOAD_LIMIT_KBPS", 0) * 1024L);
+            Bandwidth.setDownloadLimit(envInt("DOWNLOAD_LIMIT_KBPS", 0) * 1024L);
+            Bandwidth.setPeerUploadLimit(envInt("PEER_UPLOAD_LIMIT_KBPS", 0) * 1024L);
+            Bandwidth.setPeerDownloadLimit(envInt("PEER_DOWNLOAD_LIMIT_KBPS", 0) * 1024L);
+            if ("nio".equalsIgnoreCase(System.getenv("SERVER_MODE"))) {
+                FileServer.useSelector(envInt("SERVER_IO_THREADS", 2),
+                        envInt("SERVER_MAX_CONNECTIONS", 1024),
+                        envInt("SERVER_MAX_REQUESTS", 64));
+            }
+            if (System.getenv("METRICS_FILE") != null) {
+                Metrics.startDump(new File(System.getenv("METRICS_FILE")),
+                        envInt("METRICS_INTERVAL_S", 10) * 1000L);
+            }
             node.startServer();
             node.startPeerDiscovery();
             node.startFileSharing();
@@ -55,4 +91,9 @@ public class Main {
             SwingUtilities.invokeLater(() -> new MainWindow(node));
         }
     }
-}
\ No newline at end of file
+
+    private static int envInt(String name, int fallback) {
+        String value = System.getenv(name);
+        return (value != null) ? Integer.parseInt(value) : fallback;
+    }
+}
@@ -0,0 +1,98 @@
+package network;
+
+import java.io.InterruptedIOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Upload and download limits of the node, overall and per peer, in bytes per second
+ * (0 for none). Transfers ask for every slice of at most {@link #SLICE} bytes, first
+ * from the peer's bucket and then from the shared one, so one greedy peer can't
+ * crowd out the others and concurrent transfers interleave. Limits can change at any
+ * time and apply from the next slice on.
+ */
+public class Bandwidth {
+    public static final int SLICE = 64 * 1024;
+
+    private static final RateLimiter upload = new RateLimiter(0);
+    private static final RateLimiter download = new RateLimiter(0);
+    private static volatile long peerUploadRate = 0;
+    private static volatile long peerDownloadRate = 0;
+    private static final Map<String, RateLimiter> peerUploads = new ConcurrentHashMap<>();
+    private static final Map<String, RateLimiter> peerDownloads = new ConcurrentHashMap<>();
+
+    public static void setUploadLimit(long bytesPerSecond)   { upload.setRate(bytesPerSecond); }
+    public static void setDownloadLimit(long bytesPerSecond) { download.setRate(bytesPerSecond); }
+
+    public static void setPeerUploadLimit(long bytesPerSecond) {
+        peerUploadRate = Math.max(0, bytesPerSecond);
+        for (RateLimiter limiter : peerUploads.values()) {
+            limiter.setRate(peerUploadRate);
+        }
+    }
+
+    public static void setPeerDownloadLimit(long bytesPerSecond) {
+        peerDownloadRate = Math.max(0, bytesPerSecond);
+        for (RateLimiter limiter : peerDownloads.values()) {
+            limiter.setRate(peerDownloadRate);
+        }
+    }
+
+    public static long getUploadLimit()       { return upload.getRate(); }
+    public static long getDownloadLimit()     { return download.getRate(); }
+    public static long getPeerUploadLimit()   { return peerUploadRate; }
+    public static long getPeerDownloadLimit() { return peerDownloadRate; }
+
+    public static boolean isUploadLimited() {
+        return upload.isLimited() || peerUploadRate > 0;
+    }
+
+    public static boolean isDownloadLimited() {
+        return download.isLimited() || peerDownloadRate > 0;
+    }
+
+    // Blocks until bytes (at most one SLICE) may go out to peerIP
+    public static void takeUpload(String peerIP, long bytes) throws InterruptedIOException {
+        if (peerUploadRate > 0) {
+            peerLimiter(peerUploads, peerIP, peerUploadRate).take(bytes);
+        }
+        upload.take(bytes);
+    }
+
+    public static void takeDownload(String peerIP, long bytes) throws InterruptedIOException {
+        if (peerDownloadRate > 0) {
+            peerLimiter(peerDownloads, peerIP, peerDownloadRate).take(bytes);
+        }
+        download.take(bytes);
+    }
+
+    // Non-blocking upload allowance for the selector server, 0 if none right now
+    public static long tryTakeUpload(String peerIP, long max) {
+        long granted = max;
+        RateLimiter peer = null;
+        if (peerUploadRate > 0) {
+            peer = peerLimiter(peerUploads, peerIP, peerUploadRate);
+            granted = peer.tryTake(granted);
+            if (granted == 0) return 0;
+        }
+        long shared = upload.tryTake(granted);
+        if (peer != null) {
+            peer.giveBack(granted - shared);
+        }
+        return shared;
+    }
+
+    // Hands back the part of an allowance a non-blocking write could not use
+    public static void returnUpload(String peerIP, long bytes) {
+        if (bytes <= 0) return;
+        upload.giveBack(bytes);
+        RateLimiter peer = peerUploads.get(peerIP);
+        if (peer != null) {
+            peer.giveBack(bytes);
+        }
+    }
+
+    private static RateLimiter peerLimiter(Map<String, RateLimiter> limiters, String peerIP, long rate) {
+        return limiters.computeIfAbsent(peerIP, k -> new RateLimiter(rate));
+    }
+}
@@ -0,0 +1,80 @@
+package network;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Idle connections kept open per peer ("ip:port"), so consecutive requests to the
+ * same peer skip the TCP handshake. Concurrent requests to one peer each borrow
+ * their own connection; at most {@code maxIdlePerPeer} of them are kept afterwards.
+ */
+public class ConnectionPool {
+    private final int maxIdlePerPeer;
+    private final long idleTimeoutMs;
+
+    private final Map<String, Deque<PeerConnection>> idle;
+
+    public ConnectionPool(int maxIdlePerPeer, long idleTimeoutMs) {
+        this.maxIdlePerPeer = maxIdlePerPeer;
+        this.idleTimeoutMs = idleTimeoutMs;
+        this.idle = new HashMap<>();
+    }
+
+    public PeerConnection borrow(String ip, int port) throws IOException {
+        String key = ip + ":" + port;
+        long now = System.currentTimeMillis();
+        List<PeerConnection> expired = new ArrayList<>();
+        PeerConnection found = null;
+
+        synchronized (this) {
+            Deque<PeerConnection> queue = idle.get(key);
+            while (queue != null && !queue.isEmpty()) {
+                PeerConnection conn = queue.pollFirst();
+                if (conn.isOpen() && now - conn.getLastUsed() < idleTimeoutMs) {
+                    found = conn;
+                    break;
+                }
+                expired.add(conn);
+            }
+        }
+        for (PeerConnection conn : expired) {
+            conn.close();
+        }
+        return (found != null) ? found : open(ip, port);
+    }
+
+    public PeerConnection open(String ip, int port) throws IOException {
+        return new PeerConnection(ip + ":" + port, ip, port);
+    }
+
+    public void release(PeerConnection conn) {
+        if (!conn.isOpen()) return;
+        conn.markIdle();
+        synchronized (this) {
+            Deque<PeerConnection> queue = idle.computeIfAbsent(conn.getKey(), k -> new ArrayDeque<>());
+            if (queue.size() < maxIdlePerPeer) {
+                queue.addFirst(conn);
+                return;
+            }
+        }
+        conn.close();
+    }
+
+    public void closeAll() {
+        List<PeerConnection> all = new ArrayList<>();
+        synchronized (this) {
+            for (Deque<PeerConnection> queue : idle.values()) {
+                all.addAll(queue);
+            }
+            idle.clear();
+        }
+        for (PeerConnection conn : all) {
+            conn.close();
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package network;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Keeps read channels of recently served files open, least recently used ones get closed.
+ * Channels are reference counted so an evicted or replaced file is only closed once
+ * the last transfer on it is done. Positional reads make one channel safe to share.
+ */
+public class FileChannelCache {
+    public static class Handle implements AutoCloseable {
+        private final Entry entry;
+
+        private Handle(Entry entry) {
+            this.entry = entry;
+        }
+
+        public FileChannel channel() { return entry.channel; }
+
+        @Override
+        public void close() {
+            entry.owner.release(entry);
+        }
+    }
+
+    private static class Entry {
+        final FileChannelCache owner;
+        final FileChannel channel;
+        final long lastModified;
+        final long length;
+        int refs;
+        boolean evicted;
+
+        Entry(FileChannelCache owner, FileChannel channel, long lastModified, long length) {
+            this.owner = owner;
+            this.channel = channel;
+            this.lastModified = lastModified;
+            this.length = length;
+        }
+    }
+
+    private final Map<String, Entry> open;
+
+    public FileChannelCache(int maxOpen) {
+        this.open = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                if (size() <= maxOpen) return false;
+                retire(eldest.getValue());
+                return true;
+            }
+        };
+    }
+
+    public synchronized Handle acquire(File file) throws IOException {
+        String key = file.getAbsolutePath();
+        long lastModified = file.lastModified();
+        long length = file.length();
+
+        Entry entry = open.get(key);
+        if (entry != null && (entry.lastModified != lastModified || entry.length != length)) {
+            // Changed on disk since it was opened, it may be a different file now
+            open.remove(key);
+            retire(entry);
+            entry = null;
+        }
+        if (entry == null) {
+            FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+            entry = new Entry(this, channel, lastModified, length);
+            open.put(key, entry);
+        }
+        entry.refs++;
+        return new Handle(entry);
+    }
+
+    public synchronized void closeAll() {
+        Iterator<Entry> iter = open.values().iterator();
+        while (iter.hasNext()) {
+            retire(iter.next());
+            iter.remove();
+        }
+    }
+
+    private synchronized void release(Entry entry) {
+        entry.refs--;
+        if (entry.evicted && entry.refs == 0) {
+            closeQuietly(entry.channel);
+        }
+    }
+
+    private void retire(Entry entry) {
+        entry.evicted = true;
+        if (entry.refs == 0) {
+            closeQuietly(entry.channel);
+        }
+    }
+
+    private static void closeQuietly(FileChannel channel) {
+        try {
+            channel.close();
+        }
+        catch (IOException e) {
+            System.err.println(e.getMessage());
+        }
+    }
+}
@@ -1,54 +1,343 @@
 package network;
 
+import p2p.Catalog;
+import p2p.CatalogPage;
+import p2p.ChunkManifest;
+import p2p.HashService;
+
 import java.io.*;
-import java.net.Socket;
+import java.net.SocketTimeoutException;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class FileClient {
 
+    // Keep a few connections per peer, a download keeps several chunk requests in flight
+    private static final ConnectionPool pool = new ConnectionPool(8, 60_000L);
+
+    // Enough for a 1 TB file in 256 KB chunks
+    private static final int MAX_PIECE_MAP_WORDS = 1 << 16;
+
+    // Asked again now and then, a peer may have been upgraded
+    private static final long NEGOTIATION_TTL_MS = 10 * 60_000L;
+
+    // Hash algorithms both sides know, by peer; an empty list for peers older than LIST_FILES
+    private static final Map<String, Negotiated> negotiated = new ConcurrentHashMap<>();
+    // Peers that know LIST_FILES but not LIST_CHANGES_SINCE, and since when
+    private static final Map<String, Long> withoutChangeLog = new ConcurrentHashMap<>();
+    // Peers that know LIST_CHANGES_SINCE but not CATALOG_PAGE, and since when
+    private static final Map<String, Long> withoutPages = new ConcurrentHashMap<>();
+    // Peers that don't know SEARCH, and since when
+    private static final Map<String, Long> withoutSearch = new ConcurrentHashMap<>();
+    // Peers that only send chunks the old way, unframed, and since when
+    private static final Map<String, Long> withoutFramedChunks = new ConcurrentHashMap<>();
+
+    private static class Negotiated {
+        final List<String> algorithms;
+        final long time;
+
+        Negotiated(List<String> algorithms) {
+            this.algorithms = algorithms;
+            this.time = System.currentTimeMillis();
+        }
+    }
+
+    private interface Exchange<T> {
+        T call(DataOutputStream out, DataInputStream in) throws IOException;
+    }
+
+    // Runs one request/response on a pooled connection. An idle connection the peer
+    // has dropped in the meantime only shows up once used, so that case gets one retry.
+    private static <T> T withConnection(String peerIP, int peerPort, Exchange<T> exchange) throws IOException {
+        PeerConnection conn = pool.borrow(peerIP, peerPort);
+        try {
+            T result = exchange.call(conn.out(), conn.in());
+            pool.release(conn);
+            return result;
+        }
+        catch (IOException e) {
+            conn.close();
+            // A peer that timed out is not a stale idle connection, asking again would only wait twice
+            if (!conn.isReused() || e instanceof SocketTimeoutException) throw e;
+        }
+
+        conn = pool.open(peerIP, peerPort);
+        try {
+            T result = exchange.call(conn.out(), conn.in());
+            pool.release(conn);
+            return result;
+        }
+        catch (IOException e) {
+            conn.close();
+            throw e;
+        }
+    }
+
+    public static void closeConnections() {
+        pool.closeAll();
+        negotiated.clear();
+        withoutChangeLog.clear();
+        withoutPages.clear();
+        withoutSearch.clear();
+        withoutFramedChunks.clear();
+    }
+
+    // Null if the peer could not be asked, an empty list means it shares nothing
     public static List<FileInfo> requestSharedFiles(String peerIP, int peerPort) {
-        List<FileInfo> results = new ArrayList<>();
-        try (Socket socket = new Socket(peerIP, peerPort);
-             DataOutputStream out = new DataOutputStream(socket.getOutputStream());
-             DataInputStream in = new DataInputStream(socket.getInputStream())) {
+        return requestFileList(peerIP, peerPort, "LIST_SHARED_FILES", false);
+    }
 
-            out.writeUTF("LIST_SHARED_FILES");
+    // Downloads the peer has running; null if it could not be asked or is too old to tell
+    public static List<FileInfo> requestPartialFiles(String peerIP, int peerPort) {
+        return requestFileList(peerIP, peerPort, "LIST_PARTIAL_FILES", true);
+    }
 
-            String resp = in.readUTF();
-            if (!"OK".equals(resp)) {
-                System.err.println("Peer error: " + resp);
-                return results;
-            }
+    /**
+     * The hash algorithms this node and the peer both know, null if the peer could not
+     * be asked. A peer that predates the question only knows SHA-256 and gets an empty
+     * list, it is then asked with the old list commands.
+     */
+    public static List<String> negotiateAlgorithms(String peerIP, int peerPort) {
+        String key = peerIP + ":" + peerPort;
+        Negotiated known = negotiated.get(key);
+        if (known != null && System.currentTimeMillis() - known.time < NEGOTIATION_TTL_MS) {
+            return known.algorithms;
+        }
 
-            int count = in.readInt();
-            for (int i = 0; i < count; i++) {
-                String hash = in.readUTF();
-                String name = in.readUTF();
-                long size = in.readLong();
-                results.add(new FileInfo(hash, name, size));
-            }
+        try {
+            List<String> common = withConnection(peerIP, peerPort, (out, in) -> {
+                out.writeUTF("HASH_ALGORITHMS");
+                out.flush();
+
+                String resp = in.readUTF();
+                if (!"OK".equals(resp)) {
+                    // An unknown command, the peer is about to close this connection
+                    throw new LegacyPeerException();
+                }
+                List<String> names = new ArrayList<>();
+                int count = in.readInt();
+                for (int i = 0; i < count; i++) {
+                    String name = in.readUTF();
+                    if (HashService.isKnown(name)) names.add(name);
+                }
+                return names;
+            });
+            negotiated.put(key, new Negotiated(common));
+            return common;
+        }
+        catch (LegacyPeerException e) {
+            negotiated.put(key, new Negotiated(List.of()));
+            return List.of();
         }
         catch (IOException e) {
             System.err.println(e.getMessage());
+            return null;
         }
-        return results;
     }
 
-    public static long requestFileSizeByHash(String peerIP, int peerPort, String fileHash) {
-        try (Socket socket = new Socket(peerIP, peerPort);
-             DataOutputStream out = new DataOutputStream(socket.getOutputStream());
-             DataInputStream in = new DataInputStream(socket.getInputStream())) {
+    private static class LegacyPeerException extends IOException {
+        LegacyPeerException() {
+            super("Peer does not negotiate hash algorithms");
+        }
+    }
 
-            out.writeUTF("REQUEST_FILE_SIZE_BY_HASH");
-            out.writeUTF(fileHash);
+    /**
+     * The changes to the peer's catalog since the given version if they fit one page,
+     * else a page of the whole catalog from cursor on (null for the first). Null if the
+     * peer could not be asked or can't answer this, LIST_CHANGES_SINCE is next best.
+     */
+    public static CatalogPage requestCatalogPage(String peerIP, int peerPort, long epoch, long version, String cursor) {
+        String key = peerIP + ":" + peerPort;
+        Long since = withoutPages.get(key);
+        if (since != null && System.currentTimeMillis() - since < NEGOTIATION_TTL_MS) return null;
+        List<String> algorithms = negotiateAlgorithms(peerIP, peerPort);
+        if (algorithms == null || algorithms.isEmpty()) return null;
 
-            String resp = in.readUTF();
-            if (!"OK".equals(resp)) {
-                System.err.println("Peer error: " + resp);
-                return 0;
-            }
-            return in.readLong();
+        try {
+            return withConnection(peerIP, peerPort, (out, in) -> {
+                out.writeUTF("CATALOG_PAGE");
+                out.writeLong(epoch);
+                out.writeLong(version);
+                out.writeBoolean(cursor != null);
+                if (cursor != null) out.writeUTF(cursor);
+                out.writeInt(CatalogPage.MAX_ENTRIES);
+                out.writeInt(algorithms.size());
+                for (String name : algorithms) {
+                    out.writeUTF(name);
+                }
+                out.flush();
+
+                String resp = in.readUTF();
+                if (!"OK".equals(resp)) {
+                    throw new LegacyPeerException();
+                }
+                return CatalogPage.read(in);
+            });
+        }
+        catch (LegacyPeerException e) {
+            withoutPages.put(key, System.currentTimeMillis());
+            return null;
+        }
+        catch (IOException e) {
+            System.err.println(e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Up to maxResults files the peer offers whose names hold every word of the query,
+     * without fetching its catalog. Null if the peer could not be asked or can't answer this.
+     */
+    public static List<FileInfo> search(String peerIP, int peerPort, String query, int maxResults) {
+        String key = peerIP + ":" + peerPort;
+        Long since = withoutSearch.get(key);
+        if (since != null && System.currentTimeMillis() - since < NEGOTIATION_TTL_MS) return null;
+        List<String> algorithms = negotiateAlgorithms(peerIP, peerPort);
+        if (algorithms == null || algorithms.isEmpty()) return null;
+
+        try {
+            return withConnection(peerIP, peerPort, (out, in) -> {
+                out.writeUTF("SEARCH");
+                out.writeUTF(query);
+                out.writeInt(maxResults);
+                out.writeInt(algorithms.size());
+                for (String name : algorithms) {
+                    out.writeUTF(name);
+                }
+                out.flush();
+
+                String resp = in.readUTF();
+                if (!"OK".equals(resp)) {
+                    throw new LegacyPeerException();
+                }
+                return CatalogPage.read(in).added;
+            });
+        }
+        catch (LegacyPeerException e) {
+            withoutSearch.put(key, System.currentTimeMillis());
+            return null;
+        }
+        catch (IOException e) {
+            System.err.println(e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * What the peer's catalog, whole files and running downloads, changed by since the
+     * given version; epoch 0 asks for all of it. Null if the peer could not be asked or
+     * can't answer this, the full lists are the way to go then.
+     */
+    public static Catalog.Changes requestCatalogChanges(String peerIP, int peerPort, long epoch, long version) {
+        String key = peerIP + ":" + peerPort;
+        Long since = withoutChangeLog.get(key);
+        if (since != null && System.currentTimeMillis() - since < NEGOTIATION_TTL_MS) return null;
+        List<String> algorithms = negotiateAlgorithms(peerIP, peerPort);
+        if (algorithms == null || algorithms.isEmpty()) return null;
+
+        try {
+            return withConnection(peerIP, peerPort, (out, in) -> {
+                out.writeUTF("LIST_CHANGES_SINCE");
+                out.writeLong(epoch);
+                out.writeLong(version);
+                out.writeInt(algorithms.size());
+                for (String name : algorithms) {
+                    out.writeUTF(name);
+                }
+                out.flush();
+
+                String resp = in.readUTF();
+                if (!"OK".equals(resp)) {
+                    throw new LegacyPeerException();
+                }
+                long peerEpoch = in.readLong();
+                long peerVersion = in.readLong();
+                boolean full = in.readBoolean();
+                int addedCount = in.readInt();
+                List<FileInfo> added = new ArrayList<>();
+                for (int i = 0; i < addedCount; i++) {
+                    String hash = in.readUTF();
+                    String name = in.readUTF();
+                    long size = in.readLong();
+                    added.add(new FileInfo(hash, name, size, in.readBoolean()));
+                }
+                int removedCount = in.readInt();
+                List<String> removed = new ArrayList<>();
+                for (int i = 0; i < removedCount; i++) {
+                    removed.add(in.readUTF());
+                }
+                return new Catalog.Changes(peerEpoch, peerVersion, full, added, removed);
+            });
+        }
+        catch (LegacyPeerException e) {
+            withoutChangeLog.put(key, System.currentTimeMillis());
+            return null;
+        }
+        catch (IOException e) {
+            System.err.println(e.getMessage());
+            return null;
+        }
+    }
+
+    private static List<FileInfo> requestFileList(String peerIP, int peerPort, String legacyCommand, boolean partial) {
+        List<String> algorithms = negotiateAlgorithms(peerIP, peerPort);
+        if (algorithms == null) return null;
+
+        try {
+            return withConnection(peerIP, peerPort, (out, in) -> {
+                List<FileInfo> results = new ArrayList<>();
+                if (algorithms.isEmpty()) {
+                    out.writeUTF(legacyCommand);
+                }
+                else {
+                    out.writeUTF("LIST_FILES");
+                    out.writeBoolean(partial);
+                    out.writeInt(algorithms.size());
+                    for (String name : algorithms) {
+                        out.writeUTF(name);
+                    }
+                }
+                out.flush();
+
+                String resp = in.readUTF();
+                if (!"OK".equals(resp)) {
+                    System.err.println("Peer error: " + resp);
+                    return null;
+                }
+
+                int count = in.readInt();
+                for (int i = 0; i < count; i++) {
+                    String hash = in.readUTF();
+                    String name = in.readUTF();
+                    long size = in.readLong();
+                    results.add(new FileInfo(hash, name, size, partial));
+                }
+                return results;
+            });
+        }
+        catch (IOException e) {
+            System.err.println(e.getMessage());
+            return null;
+        }
+    }
+
+    public static long requestFileSizeByHash(String peerIP, int peerPort, String fileHash) {
+        try {
+            return withConnection(peerIP, peerPort, (out, in) -> {
+                out.writeUTF("REQUEST_FILE_SIZE_BY_HASH");
+                out.writeUTF(fileHash);
+                out.flush();
+
+                String resp = in.readUTF();
+                if (!"OK".equals(resp)) {
+                    System.err.println("Peer error: " + resp);
+                    return 0L;
+                }
+                return in.readLong();
+            });
         }
         catch (IOException e) {
             System.err.println(e.getMessage());
@@ -56,35 +345,47 @@ public class FileClient {
         }
     }
 
+    // Null if no manifest could be had, the peer may be running an older version
+    public static ChunkManifest requestChunkManifest(String peerIP, int peerPort, String fileHash, long fileSize) {
+        try {
+            return withConnection(peerIP, peerPort, (out, in) -> {
+                out.writeUTF("REQUEST_CHUNK_MANIFEST");
+                out.writeUTF(fileHash);
+                out.flush();
+
+                String resp = in.readUTF();
+                if (!"OK".equals(resp)) {
+                    System.err.println("Peer error: " + resp);
+                    return null;
+                }
+                return ChunkManifest.read(in, fileSize);
+            });
+        }
+        catch (IOException e) {
+            System.err.println(e.getMessage());
+            return null;
+        }
+    }
+
+    // Reads the chunk into the start of buffer, which must hold at least chunkSize bytes
     public static boolean downloadChunk(String peerIP, int peerPort,
                                         String fileHash, long offset, long chunkSize,
-                                        File chunkOutputFile) {
-        try (Socket socket = new Socket(peerIP, peerPort);
-             DataOutputStream out = new DataOutputStream(socket.getOutputStream());
-             DataInputStream in = new DataInputStream(socket.getInputStream())) {
-
-            out.writeUTF("REQUEST_CHUNK");
-            out.writeUTF(fileHash);
-            out.writeLong(offset);
-            out.writeLong(chunkSize);
-
-            String resp = in.readUTF();
-            if (!"OK".equals(resp)) {
-                System.err.println("Peer error: " + resp);
-                return false;
-            }
-
-            try (FileOutputStream fos = new FileOutputStream(chunkOutputFile)) {
-                byte[] buffer = new byte[256 * 1024];
-                long bytesRemaining = chunkSize;
-                int bytesRead;
-                while (bytesRemaining > 0 &&
-                        (bytesRead = in.read(buffer, 0, (int)Math.min(buffer.length, bytesRemaining))) != -1) {
-                    fos.write(buffer, 0, bytesRead);
-                    bytesRemaining -= bytesRead;
+                                        byte[] buffer) {
+        String key = peerIP + ":" + peerPort;
+        Long since = withoutFramedChunks.get(key);
+        boolean framed = since == null || System.currentTimeMillis() - since >= NEGOTIATION_TTL_MS;
+        try {
+            if (framed) {
+                try {
+                    return withConnection(peerIP, peerPort,
+                            (out, in) -> exchangeChunk(peerIP, fileHash, offset, chunkSize, buffer, true, out, in));
+                }
+                catch (LegacyPeerException e) {
+                    withoutFramedChunks.put(key, System.currentTimeMillis());
                 }
             }
-            return true;
+            return withConnection(peerIP, peerPort,
+                    (out, in) -> exchangeChunk(peerIP, fileHash, offset, chunkSize, buffer, false, out, in));
         }
         catch (IOException e) {
             System.err.println(e.getMessage());
@@ -92,15 +393,93 @@ public class FileClient {
         }
     }
 
+    // REQUEST_CHUNK_FRAMED sends the length first, the old REQUEST_CHUNK sends as much as
+    // there is and ends the stream when that's less than asked
+    private static boolean exchangeChunk(String peerIP, String fileHash, long offset, long chunkSize,
+                                         byte[] buffer, boolean framed,
+                                         DataOutputStream out, DataInputStream in) throws IOException {
+        out.writeUTF(framed ? "REQUEST_CHUNK_FRAMED" : "REQUEST_CHUNK");
+        out.writeUTF(fileHash);
+        out.writeLong(offset);
+        out.writeLong(chunkSize);
+        out.flush();
+
+        String resp = in.readUTF();
+        if (framed && "ERROR: Unknown command".equals(resp)) {
+            // The peer is about to close this connection
+            throw new LegacyPeerException();
+        }
+        if (!"OK".equals(resp)) {
+            System.err.println("Peer error: " + resp);
+            return false;
+        }
+
+        // The length prefix keeps the connection in sync even when the file is shorter than asked
+        long length = framed ? in.readLong() : chunkSize;
+        if (length > buffer.length) {
+            throw new IOException("Peer sent " + length + " bytes for a " + chunkSize + " byte chunk");
+        }
+        for (int read = 0; read < length; ) {
+            int slice = (int) (length - read);
+            if (Bandwidth.isDownloadLimited()) {
+                slice = Math.min(slice, Bandwidth.SLICE);
+                Bandwidth.takeDownload(peerIP, slice);
+            }
+            in.readFully(buffer, read, slice);
+            read += slice;
+            Metrics.meter("download.bytes").mark(slice);
+            Metrics.meter("download.bytes", peerIP).mark(slice);
+        }
+        return length == chunkSize;
+    }
+
+    // Null if the peer can't tell, older peers only ever share whole files
+    public static BitSet requestPieceMap(String peerIP, int peerPort, String fileHash, int chunkSize) {
+        try {
+            return withConnection(peerIP, peerPort, (out, in) -> {
+                out.writeUTF("REQUEST_PIECE_MAP");
+                out.writeUTF(fileHash);
+                out.writeInt(chunkSize);
+                out.flush();
+
+                String resp = in.readUTF();
+                if (!"OK".equals(resp)) {
+                    System.err.println("Peer error: " + resp);
+                    return null;
+                }
+                int count = in.readInt();
+                if (count < 0 || count > MAX_PIECE_MAP_WORDS) {
+                    throw new IOException("Malformed piece map");
+                }
+                long[] words = new long[count];
+                for (int i = 0; i < count; i++) {
+                    words[i] = in.readLong();
+                }
+                return BitSet.valueOf(words);
+            });
+        }
+        catch (IOException e) {
+            System.err.println(e.getMessage());
+            return null;
+        }
+    }
+
     public static class FileInfo {
         public final String fileHash;
         public final String fileName;
         public final long fileSize;
+        // Still downloading on the peer, only some of its chunks can be had there
+        public final boolean partial;
 
         public FileInfo(String fileHash, String fileName, long fileSize) {
+            this(fileHash, fileName, fileSize, false);
+        }
+
+        public FileInfo(String fileHash, String fileName, long fileSize, boolean partial) {
             this.fileHash = fileHash;
             this.fileName = fileName;
             this.fileSize = fileSize;
+            this.partial = partial;
         }
     }
-}
\ No newline at end of file
+}
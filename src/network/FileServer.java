@@ -1,151 +1,176 @@
 package network;
 
-import p2p.FileMgr;
-import p2p.FileMetaData;
 import p2p.Node;
 
 import java.io.*;
-import java.net.ServerSocket;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 
+/**
+ * Serves the shared files. By default every connection gets a thread of its own;
+ * {@link #useSelector} switches to {@link NioFileServer}, which holds any number of
+ * connections on a few threads with fixed limits.
+ */
 public class FileServer implements Runnable {
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int IDLE_TIMEOUT_MS = 120_000;
+    private static final int MAX_OPEN_FILES = 64;
+
+    private final SocketChannel channel;
     private final Socket socket;
-    private final Node node;
+    private final RequestHandler handler;
 
-    private static ServerSocket serverSocket;
+    private static ServerSocketChannel serverChannel;
     private static ExecutorService executor;
-
-    public FileServer(Socket socket, Node node) {
-        this.socket = socket;
-        this.node = node;
+    private static RequestHandler sharedHandler;
+    private static final AtomicInteger openConnections = new AtomicInteger();
+    private static final AtomicInteger activeRequests = new AtomicInteger();
+
+    // Selector mode, off unless configured
+    private static boolean selectorMode = false;
+    private static int ioThreads = 2;
+    private static int maxConnections = 1024;
+    private static int maxRequests = 64;
+    private static NioFileServer nioServer;
+
+    public FileServer(SocketChannel channel, RequestHandler handler) {
+        this.channel = channel;
+        this.socket = channel.socket();
+        this.handler = handler;
     }
 
     @Override
     public void run() {
-        try (DataInputStream in = new DataInputStream(socket.getInputStream());
-             DataOutputStream out = new DataOutputStream(socket.getOutputStream())) {
-
-            String command = in.readUTF();
-            System.out.println("[FileServer] command => " + command
-                    + " from " + socket.getInetAddress());
-
-            switch (command) {
-            case "LIST_SHARED_FILES":
-                handleListSharedFiles(out);
-                break;
-            case "REQUEST_FILE_SIZE_BY_HASH":
-                handleFileSizeByHash(in, out);
-                break;
-            case "REQUEST_CHUNK":
-                handleRequestChunk(in, out);
-                break;
-            default:
-                out.writeUTF("ERROR: Unknown command");
-                break;
+        openConnections.incrementAndGet();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), BUFFER_SIZE));
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), BUFFER_SIZE))) {
+
+            socket.setTcpNoDelay(true);
+            socket.setSoTimeout(IDLE_TIMEOUT_MS);
+            System.out.println("[FileServer] connection from " + socket.getInetAddress());
+            String peerIP = socket.getInetAddress().getHostAddress();
+            Metrics.Meter uploaded = Metrics.meter("upload.bytes");
+            Metrics.Meter peerUploaded = Metrics.meter("upload.bytes", peerIP);
+
+            // Serve requests until the client hangs up, each response is complete before the next read
+            while (true) {
+                RequestHandler.Request request;
+                try {
+                    request = RequestHandler.Request.read(in);
+                }
+                catch (EOFException | SocketTimeoutException e) {
+                    break;
+                }
+
+                activeRequests.incrementAndGet();
+                try (RequestHandler.Response response = handler.handle(request)) {
+                    out.write(response.header);
+                    out.flush();
+                    long length = response.getBodyLength();
+                    long sent = 0;
+                    while (sent < length) {
+                        long slice = length - sent;
+                        if (Bandwidth.isUploadLimited()) {
+                            slice = Math.min(slice, Bandwidth.SLICE);
+                            Bandwidth.takeUpload(peerIP, slice);
+                        }
+                        for (long end = sent + slice; sent < end; ) {
+                            sent += response.sendBody(sent, end - sent, channel);
+                        }
+                        uploaded.mark(slice);
+                        peerUploaded.mark(slice);
+                    }
+                    if (response.closeConnection) return;
+                }
+                finally {
+                    activeRequests.decrementAndGet();
+                }
             }
         }
         catch (IOException e) {
-            System.err.println("FILESERVER IO exception:" + e.getMessage());
+            System.err.println("FILESERVER IO exception:" + e);
         }
-    }
-
-    private void handleListSharedFiles(DataOutputStream out) throws IOException {
-        FileMgr fileMgr = node.getFileManager();
-        if (fileMgr == null) {
-            out.writeUTF("ERROR: Node file manager not found");
-            return;
+        catch (RuntimeException e) {
+            // Only this connection goes, the server keeps serving the others
+            System.err.println("FILESERVER request failed: " + e);
         }
-
-        out.writeUTF("OK");
-        var sharedFiles = fileMgr.getSharedFiles();
-        out.writeInt(sharedFiles.size());
-
-        for (FileMetaData meta : sharedFiles) {
-            out.writeUTF(meta.getFileHash());
-            out.writeUTF(meta.getFileName());
-            out.writeLong(meta.getFileSize());
+        finally {
+            openConnections.decrementAndGet();
+            try {
+                socket.close();
+            }
+            catch (IOException e) {
+                System.err.println(e.getMessage());
+            }
         }
     }
 
-    private void handleFileSizeByHash(DataInputStream in, DataOutputStream out) throws IOException {
-        String fileHash = in.readUTF();
-        FileMgr fileMgr = node.getFileManager();
-        if (fileMgr == null) {
-            out.writeUTF("ERROR: Node file manager not found");
-            return;
-        }
-
-        FileMetaData meta = fileMgr.getFileMetaDataByHash(fileHash);
-        if (meta == null || meta.getFile() == null || !meta.getFile().exists()) {
-            out.writeUTF("ERROR: File not found");
-            return;
-        }
-
-        out.writeUTF("OK");
-        out.writeLong(meta.getFile().length());
+    /**
+     * Serves from a few selector threads instead of a thread per connection. Takes effect
+     * on the next {@link #startServer}; at most {@code maxConnections} are accepted and
+     * at most {@code maxRequests} answered at once, the rest wait in the socket buffers.
+     */
+    public static void useSelector(int ioThreadCount, int maxConnectionCount, int maxRequestCount) {
+        selectorMode = true;
+        ioThreads = Math.max(1, ioThreadCount);
+        maxConnections = Math.max(1, maxConnectionCount);
+        maxRequests = Math.max(1, maxRequestCount);
     }
 
-    private void handleRequestChunk(DataInputStream in, DataOutputStream out) throws IOException {
-        String fileHash = in.readUTF();
-        long offset = in.readLong();
-        long chunkSize = in.readLong();
-
-        FileMgr fileMgr = node.getFileManager();
-        if (fileMgr == null) {
-            out.writeUTF("ERROR: Node file manager not found");
-            return;
-        }
-
-        FileMetaData meta = fileMgr.getFileMetaDataByHash(fileHash);
-        if (meta == null || meta.getFile() == null || !meta.getFile().exists()) {
-            out.writeUTF("ERROR: File not found");
-            return;
-        }
-
-        out.writeUTF("OK");
-
-        try (RandomAccessFile raf = new RandomAccessFile(meta.getFile(), "r")) {
-            raf.seek(offset);
-            byte[] buffer = new byte[256*1024];
-            long bytesRemaining = chunkSize;
-            int bytesRead;
-            while (bytesRemaining > 0 &&
-                    (bytesRead = raf.read(buffer, 0, (int)Math.min(buffer.length, bytesRemaining))) != -1) {
-                out.write(buffer, 0, bytesRead);
-                bytesRemaining -= bytesRead;
+    public static void startServer(int port, Node node) {
+        sharedHandler = new RequestHandler(node, MAX_OPEN_FILES);
+        if (selectorMode) {
+            try {
+                nioServer = new NioFileServer(port, sharedHandler, ioThreads, maxConnections, maxRequests);
+                nioServer.run();
+            }
+            catch (IOException e) {
+                System.out.println("FileServer closed: " + e);
             }
+            return;
         }
-    }
 
-    public static void startServer(int port, Node node) {
         try {
-            serverSocket = new ServerSocket(port);
-            executor = Executors.newCachedThreadPool();
+            serverChannel = ServerSocketChannel.open();
+            serverChannel.bind(new InetSocketAddress(port));
+            executor = Workers.newTaskExecutor("FileServer-handler");
+            Metrics.gauge("server.connections", openConnections::get);
+            Metrics.gauge("server.requests.active", activeRequests::get);
+            // Every connection has its own thread, nothing ever waits for one
+            Metrics.gauge("server.queue.depth", () -> 0);
             System.out.println("FileServer started on port " + port);
 
-            while (!serverSocket.isClosed()) {
-                Socket clientSocket = serverSocket.accept();
-                if (serverSocket.isClosed()) break;
-                executor.submit(new FileServer(clientSocket, node));
+            while (serverChannel.isOpen()) {
+                SocketChannel clientChannel = serverChannel.accept();
+                if (!serverChannel.isOpen()) break;
+                executor.submit(new FileServer(clientChannel, sharedHandler));
             }
         }
         catch (IOException e) {
-            System.out.println("FileServer closed: " + e.getMessage());
+            System.out.println("FileServer closed: " + e);
         }
     }
 
     public static void stopServer() {
         System.out.println("Closing serverSocket");
-        if (serverSocket != null && !serverSocket.isClosed()) {
+        if (nioServer != null) {
+            nioServer.close();
+            nioServer = null;
+        }
+        if (serverChannel != null && serverChannel.isOpen()) {
             try {
-                serverSocket.close();
+                serverChannel.close();
             }
             catch (IOException e) {
                 System.err.println("FileServer stopped: " + e.getMessage());
             }
         }
         if (executor != null) executor.shutdownNow();
+        if (sharedHandler != null) sharedHandler.close();
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,301 @@
+package network;
+
+import javax.management.*;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Counters, rates, histograms and gauges of the node, by name. A name may carry a tag
+ * such as a peer IP, {@code upload.bytes[10.22.249.202]}, next to its untagged total.
+ * Everything is readable over JMX as {@code p2p:type=Metrics}, as text from
+ * {@link #dump}, and optionally as a file rewritten every few seconds.
+ * <p>
+ * Recording is cheap enough for every chunk and every upload slice; nothing is ever
+ * reset, histograms cover the whole run.
+ */
+public class Metrics {
+    public static final String OBJECT_NAME = "p2p:type=Metrics";
+
+    /** Total of some quantity and its rate per second over the last few seconds. */
+    public static class Meter {
+        private static final int WINDOW_SECONDS = 5;
+
+        private final LongAdder total = new LongAdder();
+        // One slot per second, the one being filled is left out of the rate
+        private final long[] slots = new long[WINDOW_SECONDS + 1];
+        private final long[] slotSecond = new long[WINDOW_SECONDS + 1];
+
+        public void mark(long n) {
+            total.add(n);
+            long second = currentSecond();
+            int i = (int) Math.floorMod(second, (long) slots.length);
+            synchronized (this) {
+                if (slotSecond[i] != second) {
+                    slotSecond[i] = second;
+                    slots[i] = 0;
+                }
+                slots[i] += n;
+            }
+        }
+
+        public long getCount() {
+            return total.sum();
+        }
+
+        public synchronized double getRate() {
+            long now = currentSecond();
+            long sum = 0;
+            for (long second = now - WINDOW_SECONDS; second < now; second++) {
+                int i = (int) Math.floorMod(second, (long) slots.length);
+                if (slotSecond[i] == second) sum += slots[i];
+            }
+            return (double) sum / WINDOW_SECONDS;
+        }
+
+        private static long currentSecond() {
+            return Math.floorDiv(System.nanoTime(), 1_000_000_000L);
+        }
+    }
+
+    /**
+     * Distribution of non-negative values. Four buckets per power of two, so a reported
+     * percentile is the top of its bucket and at most a quarter above the true value.
+     */
+    public static class Histogram {
+        private static final int SUB_BUCKETS = 4;
+
+        private final AtomicLongArray buckets = new AtomicLongArray(64 * SUB_BUCKETS);
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sum = new LongAdder();
+        private final AtomicLong max = new AtomicLong();
+
+        public void record(long value) {
+            value = Math.max(0, value);
+            buckets.incrementAndGet(bucketOf(value));
+            count.increment();
+            sum.add(value);
+            max.accumulateAndGet(value, Math::max);
+        }
+
+        public long getCount() { return count.sum(); }
+        public long getMax()   { return max.get(); }
+
+        public double getMean() {
+            long n = count.sum();
+            return (n == 0) ? 0 : (double) sum.sum() / n;
+        }
+
+        // p between 0 and 1
+        public long percentile(double p) {
+            long n = count.sum();
+            if (n == 0) return 0;
+            long rank = Math.max(1, (long) Math.ceil(p * n));
+            long seen = 0;
+            for (int b = 0; b < buckets.length(); b++) {
+                seen += buckets.get(b);
+                if (seen >= rank) return Math.min(upperBound(b), max.get());
+            }
+            return max.get();
+        }
+
+        // 0 to 3 exactly, then [2^log, 2^(log+1)) split in four
+        static int bucketOf(long value) {
+            if (value < SUB_BUCKETS) return (int) value;
+            int log = 63 - Long.numberOfLeadingZeros(value);
+            int sub = (int) ((value >>> (log - 2)) & (SUB_BUCKETS - 1));
+            return (log - 1) * SUB_BUCKETS + sub;
+        }
+
+        static long upperBound(int bucket) {
+            if (bucket < SUB_BUCKETS) return bucket;
+            int log = bucket / SUB_BUCKETS + 1;
+            long width = 1L << (log - 2);
+            long lower = (1L << log) + (bucket % SUB_BUCKETS) * width;
+            return lower + width - 1;
+        }
+    }
+
+    private static final Map<String, Meter> meters = new ConcurrentHashMap<>();
+    private static final Map<String, Histogram> histograms = new ConcurrentHashMap<>();
+    private static final Map<String, LongSupplier> gauges = new ConcurrentHashMap<>();
+    private static ScheduledExecutorService dumper;
+
+    public static Meter meter(String name) {
+        return meters.computeIfAbsent(name, k -> new Meter());
+    }
+
+    public static Meter meter(String name, String tag) {
+        return meter(tagged(name, tag));
+    }
+
+    public static Histogram histogram(String name) {
+        return histograms.computeIfAbsent(name, k -> new Histogram());
+    }
+
+    public static Histogram histogram(String name, String tag) {
+        return histogram(tagged(name, tag));
+    }
+
+    // Read when the metrics are, replaces an earlier gauge of the same name
+    public static void gauge(String name, LongSupplier value) {
+        gauges.put(name, value);
+    }
+
+    /** Every value by name, in name order. Counts and maxima are Longs, rates and means Doubles. */
+    public static SortedMap<String, Number> snapshot() {
+        SortedMap<String, Number> values = new TreeMap<>();
+        for (Map.Entry<String, Meter> e : meters.entrySet()) {
+            Meter m = e.getValue();
+            values.put(suffixed(e.getKey(), "count"), m.getCount());
+            values.put(suffixed(e.getKey(), "rate"), m.getRate());
+        }
+        for (Map.Entry<String, Histogram> e : histograms.entrySet()) {
+            Histogram h = e.getValue();
+            values.put(suffixed(e.getKey(), "count"), h.getCount());
+            values.put(suffixed(e.getKey(), "mean"), h.getMean());
+            values.put(suffixed(e.getKey(), "p50"), h.percentile(0.50));
+            values.put(suffixed(e.getKey(), "p90"), h.percentile(0.90));
+            values.put(suffixed(e.getKey(), "p99"), h.percentile(0.99));
+            values.put(suffixed(e.getKey(), "max"), h.getMax());
+        }
+        for (Map.Entry<String, LongSupplier> e : gauges.entrySet()) {
+            try {
+                values.put(e.getKey(), e.getValue().getAsLong());
+            }
+            catch (RuntimeException ex) {
+                System.err.println("Gauge " + e.getKey() + ": " + ex.getMessage());
+            }
+        }
+        return values;
+    }
+
+    // One "name value" line per value
+    public static String dump() {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, Number> e : snapshot().entrySet()) {
+            Number v = e.getValue();
+            sb.append(e.getKey()).append(' ');
+            sb.append((v instanceof Double) ? String.format(Locale.ROOT, "%.1f", v.doubleValue()) : v.toString());
+            sb.append('\n');
+        }
+        return sb.toString();
+    }
+
+    // Makes the metrics visible to jconsole and any other JMX client of this JVM
+    public static synchronized void registerMBean() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (!server.isRegistered(name)) {
+                server.registerMBean(new MetricsBean(), name);
+            }
+        }
+        catch (JMException e) {
+            System.err.println("Metrics not registered with JMX: " + e.getMessage());
+        }
+    }
+
+    // Rewrites file with dump() every intervalMs, the file is replaced whole so readers never see half of it
+    public static synchronized void startDump(File file, long intervalMs) {
+        stopDump();
+        dumper = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread t = new Thread(task, "metrics-dump");
+            t.setDaemon(true);
+            return t;
+        });
+        dumper.scheduleWithFixedDelay(() -> writeDump(file), intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    public static synchronized void stopDump() {
+        if (dumper != null) {
+            dumper.shutdownNow();
+            dumper = null;
+        }
+    }
+
+    private static void writeDump(File file) {
+        File tmp = new File(file.getPath() + ".tmp");
+        try {
+            Files.write(tmp.toPath(), dump().getBytes(StandardCharsets.UTF_8));
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        catch (IOException e) {
+            System.err.println("Could not write metrics: " + e.getMessage());
+        }
+    }
+
+    private static String tagged(String name, String tag) {
+        return name + "[" + tag + "]";
+    }
+
+    // upload.bytes[ip] + count => upload.bytes.count[ip]
+    private static String suffixed(String name, String suffix) {
+        int tag = name.indexOf('[');
+        if (tag < 0) return name + "." + suffix;
+        return name.substring(0, tag) + "." + suffix + name.substring(tag);
+    }
+
+    // Attributes are whatever the snapshot holds at the time, so new peers show up on their own
+    private static class MetricsBean implements DynamicMBean {
+        @Override
+        public Object getAttribute(String attribute) throws AttributeNotFoundException {
+            Number value = snapshot().get(attribute);
+            if (value == null) throw new AttributeNotFoundException(attribute);
+            return value;
+        }
+
+        @Override
+        public AttributeList getAttributes(String[] attributes) {
+            SortedMap<String, Number> values = snapshot();
+            AttributeList list = new AttributeList();
+            for (String attribute : attributes) {
+                Number value = values.get(attribute);
+                if (value != null) list.add(new Attribute(attribute, value));
+            }
+            return list;
+        }
+
+        @Override
+        public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+            throw new AttributeNotFoundException("Metrics are read-only: " + attribute.getName());
+        }
+
+        @Override
+        public AttributeList setAttributes(AttributeList attributes) {
+            return new AttributeList();
+        }
+
+        @Override
+        public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+            if ("dump".equals(actionName)) return dump();
+            throw new ReflectionException(new NoSuchMethodException(actionName));
+        }
+
+        @Override
+        public MBeanInfo getMBeanInfo() {
+            List<MBeanAttributeInfo> attributes = new ArrayList<>();
+            for (Map.Entry<String, Number> e : snapshot().entrySet()) {
+                attributes.add(new MBeanAttributeInfo(e.getKey(), e.getValue().getClass().getName(),
+                        e.getKey(), true, false, false));
+            }
+            MBeanOperationInfo dumpOp = new MBeanOperationInfo("dump", "All metrics as text",
+                    new MBeanParameterInfo[0], String.class.getName(), MBeanOperationInfo.INFO);
+            return new MBeanInfo(Metrics.class.getName(), "P2P node metrics",
+                    attributes.toArray(new MBeanAttributeInfo[0]), null,
+                    new MBeanOperationInfo[] { dumpOp }, null);
+        }
+    }
+}
@@ -0,0 +1,444 @@
+package network;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * File server on a few selector threads. Connections are spread over the I/O threads,
+ * requests are answered on a small worker pool, and chunk data goes out with
+ * transferTo as fast as each socket takes it.
+ * <p>
+ * Nothing grows with load: past {@code maxConnections} no more connections are
+ * accepted, and past {@code maxRequests} requests in progress connections stop being
+ * read. Either way clients wait in the kernel's backlog and socket buffers.
+ */
+public class NioFileServer {
+    private static final int IDLE_TIMEOUT_MS = 120_000;
+    // Most requests are a command and a few short arguments and fit the first buffer
+    private static final int INITIAL_REQUEST_BYTES = 4096;
+    // A CATALOG_PAGE cursor or a SEARCH query may be a whole 64 KB UTF string, one that
+    // does not fit with the command and the other arguments is not ours
+    private static final int MAX_REQUEST_BYTES = 2 + 65535 + INITIAL_REQUEST_BYTES;
+
+    private final ServerSocketChannel serverChannel;
+    private final RequestHandler handler;
+    private final IoLoop[] loops;
+    private final ExecutorService workers;
+    private final Semaphore connectionSlots;
+    private final Semaphore requestSlots;
+    // Requests read but waiting for a free slot, over all I/O threads
+    private final AtomicInteger queued;
+    private volatile boolean running;
+
+    public NioFileServer(int port, RequestHandler handler, int ioThreads,
+                         int maxConnections, int maxRequests) throws IOException {
+        this.handler = handler;
+        this.connectionSlots = new Semaphore(maxConnections);
+        this.requestSlots = new Semaphore(maxRequests);
+        this.queued = new AtomicInteger();
+        this.workers = Executors.newFixedThreadPool(Math.min(maxRequests, Math.max(2, ioThreads * 2)));
+        this.serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port));
+        this.loops = new IoLoop[ioThreads];
+        for (int i = 0; i < ioThreads; i++) {
+            loops[i] = new IoLoop();
+        }
+        this.running = true;
+
+        Metrics.gauge("server.connections", () -> maxConnections - connectionSlots.availablePermits());
+        Metrics.gauge("server.requests.active", () -> maxRequests - requestSlots.availablePermits());
+        Metrics.gauge("server.queue.depth", queued::get);
+    }
+
+    // Accepts until closed, on the calling thread
+    public void run() throws IOException {
+        for (int i = 0; i < loops.length; i++) {
+            Thread t = new Thread(loops[i], "FileServer-io-" + i);
+            t.setDaemon(true);
+            t.start();
+        }
+        System.out.println("FileServer started on port " + serverChannel.socket().getLocalPort()
+                + " (" + loops.length + " I/O threads)");
+
+        int next = 0;
+        while (running) {
+            try {
+                // Full up: stop accepting, newcomers queue in the listen backlog
+                if (!connectionSlots.tryAcquire(1, TimeUnit.SECONDS)) continue;
+            }
+            catch (InterruptedException e) {
+                break;
+            }
+            SocketChannel client;
+            try {
+                client = serverChannel.accept();
+            }
+            catch (IOException e) {
+                connectionSlots.release();
+                if (!running) break;
+                throw e;
+            }
+            loops[next].add(client);
+            next = (next + 1) % loops.length;
+        }
+    }
+
+    public void close() {
+        running = false;
+        try {
+            serverChannel.close();
+        }
+        catch (IOException e) {
+            System.err.println(e.getMessage());
+        }
+        for (IoLoop loop : loops) {
+            loop.selector.wakeup();
+        }
+        workers.shutdownNow();
+    }
+
+    private static class Connection {
+        final SocketChannel channel;
+        final String peerIP;
+        final Metrics.Meter peerUploaded;
+        // Grows for a long request, back to the initial size once it is taken off
+        ByteBuffer in;
+        SelectionKey key;
+        long lastActive;
+
+        // The request being answered and how far its response got
+        boolean busy;
+        RequestHandler.Request waiting;
+        RequestHandler.Response response;
+        ByteBuffer header;
+        long bodySent;
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+            this.peerIP = channel.socket().getInetAddress().getHostAddress();
+            this.peerUploaded = Metrics.meter("upload.bytes", peerIP);
+            this.in = ByteBuffer.allocate(INITIAL_REQUEST_BYTES);
+            this.lastActive = System.currentTimeMillis();
+        }
+    }
+
+    private class IoLoop implements Runnable {
+        final Selector selector;
+        final Queue<SocketChannel> accepted = new ConcurrentLinkedQueue<>();
+        final Queue<Object[]> answered = new ConcurrentLinkedQueue<>();
+        // Connections with a request that found no free slot, and ones held back by the upload limit
+        final Deque<Connection> stalled = new ArrayDeque<>();
+        final Deque<Connection> throttled = new ArrayDeque<>();
+        boolean resuming = false;
+        long lastIdleCheck = 0;
+        final Metrics.Meter uploaded = Metrics.meter("upload.bytes");
+
+        IoLoop() throws IOException {
+            this.selector = Selector.open();
+        }
+
+        void add(SocketChannel client) {
+            accepted.add(client);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (running) {
+                    selector.select(stalled.isEmpty() && throttled.isEmpty() ? 1000 : 20);
+                    registerAccepted();
+                    sendAnswered();
+                    startStalled();
+                    resumeThrottled();
+
+                    Iterator<SelectionKey> iter = selector.selectedKeys().iterator();
+                    while (iter.hasNext()) {
+                        SelectionKey key = iter.next();
+                        iter.remove();
+                        Connection conn = (Connection) key.attachment();
+                        try {
+                            if (key.isValid() && key.isReadable()) onReadable(conn);
+                            if (key.isValid() && key.isWritable()) write(conn);
+                        }
+                        catch (IOException | CancelledKeyException e) {
+                            close(conn);
+                        }
+                        catch (RuntimeException e) {
+                            // A bad request costs its own connection, never the I/O thread
+                            System.err.println("FILESERVER request failed: " + e);
+                            close(conn);
+                        }
+                    }
+                    closeIdle();
+                }
+            }
+            catch (IOException e) {
+                System.err.println("FileServer I/O thread stopped: " + e);
+            }
+            finally {
+                for (SelectionKey key : selector.keys()) {
+                    close((Connection) key.attachment());
+                }
+                try {
+                    selector.close();
+                }
+                catch (IOException e) {
+                    System.err.println(e.getMessage());
+                }
+            }
+        }
+
+        private void registerAccepted() {
+            SocketChannel client;
+            while ((client = accepted.poll()) != null) {
+                Connection conn = new Connection(client);
+                try {
+                    client.configureBlocking(false);
+                    client.socket().setTcpNoDelay(true);
+                    conn.key = client.register(selector, SelectionKey.OP_READ, conn);
+                }
+                catch (IOException e) {
+                    close(conn);
+                }
+            }
+        }
+
+        private void onReadable(Connection conn) throws IOException {
+            if (conn.channel.read(conn.in) < 0) {
+                close(conn);
+                return;
+            }
+            conn.lastActive = System.currentTimeMillis();
+            nextRequest(conn);
+        }
+
+        // Takes one complete request off the input buffer, if there is one yet
+        private void nextRequest(Connection conn) throws IOException {
+            if (conn.busy) return;
+            conn.in.flip();
+            ByteArrayInputStream bytes = new ByteArrayInputStream(conn.in.array(), conn.in.position(), conn.in.remaining());
+            RequestHandler.Request request;
+            try {
+                request = RequestHandler.Request.read(new DataInputStream(bytes));
+            }
+            catch (EOFException e) {
+                conn.in.compact();
+                if (!conn.in.hasRemaining()) {
+                    if (conn.in.capacity() >= MAX_REQUEST_BYTES) {
+                        throw new IOException("Request too large");
+                    }
+                    resize(conn, Math.min(conn.in.capacity() * 2, MAX_REQUEST_BYTES));
+                }
+                return;
+            }
+            conn.in.position(conn.in.limit() - bytes.available());
+            conn.in.compact();
+            if (conn.in.capacity() > INITIAL_REQUEST_BYTES && conn.in.position() <= INITIAL_REQUEST_BYTES) {
+                resize(conn, INITIAL_REQUEST_BYTES);
+            }
+
+            // Nothing more is read from this connection until the response is out
+            conn.busy = true;
+            conn.key.interestOps(0);
+            if (requestSlots.tryAcquire()) {
+                dispatch(conn, request);
+            }
+            else {
+                conn.waiting = request;
+                stalled.add(conn);
+                queued.incrementAndGet();
+            }
+        }
+
+        // Moves what is buffered so far into a buffer of the given size
+        private void resize(Connection conn, int capacity) {
+            ByteBuffer in = ByteBuffer.allocate(capacity);
+            conn.in.flip();
+            in.put(conn.in);
+            conn.in = in;
+        }
+
+        private void startStalled() {
+            while (!stalled.isEmpty()) {
+                Connection conn = stalled.peek();
+                if (!conn.channel.isOpen()) {
+                    stalled.poll();
+                    queued.decrementAndGet();
+                    continue;
+                }
+                if (!requestSlots.tryAcquire()) return;
+                stalled.poll();
+                queued.decrementAndGet();
+                RequestHandler.Request request = conn.waiting;
+                conn.waiting = null;
+                dispatch(conn, request);
+            }
+        }
+
+        private void resumeThrottled() {
+            resuming = true;
+            for (int i = throttled.size(); i > 0; i--) {
+                Connection conn = throttled.poll();
+                if (!conn.channel.isOpen()) continue;
+                try {
+                    write(conn);
+                }
+                catch (IOException | CancelledKeyException e) {
+                    close(conn);
+                }
+                catch (RuntimeException e) {
+                    System.err.println("FILESERVER request failed: " + e);
+                    close(conn);
+                }
+            }
+            resuming = false;
+        }
+
+        // The handler may touch the disk or build a manifest, so it runs off the I/O thread
+        private void dispatch(Connection conn, RequestHandler.Request request) {
+            try {
+                workers.execute(() -> {
+                    Object result;
+                    try {
+                        result = handler.handle(request);
+                    }
+                    catch (IOException | RuntimeException e) {
+                        // Answered with a close, so the slot and the connection come free
+                        result = e;
+                    }
+                    answered.add(new Object[] { conn, result });
+                    selector.wakeup();
+                });
+            }
+            catch (RejectedExecutionException e) {
+                requestSlots.release();
+                close(conn);
+            }
+        }
+
+        private void sendAnswered() {
+            Object[] done;
+            while ((done = answered.poll()) != null) {
+                Connection conn = (Connection) done[0];
+                if (done[1] instanceof Exception) {
+                    System.err.println("FILESERVER IO exception:" + done[1]);
+                    requestSlots.release();
+                    conn.busy = false;
+                    close(conn);
+                    continue;
+                }
+                RequestHandler.Response response = (RequestHandler.Response) done[1];
+                if (!conn.channel.isOpen()) {
+                    response.close();
+                    requestSlots.release();
+                    continue;
+                }
+                conn.response = response;
+                conn.header = ByteBuffer.wrap(response.header);
+                conn.bodySent = 0;
+                try {
+                    write(conn);
+                }
+                catch (IOException | CancelledKeyException e) {
+                    close(conn);
+                }
+                catch (RuntimeException e) {
+                    System.err.println("FILESERVER request failed: " + e);
+                    close(conn);
+                }
+            }
+        }
+
+        // Writes as much of the response as the socket takes, then waits for OP_WRITE
+        private void write(Connection conn) throws IOException {
+            RequestHandler.Response response = conn.response;
+            if (response == null) return;
+
+            while (conn.header.hasRemaining()) {
+                if (conn.channel.write(conn.header) == 0) {
+                    conn.key.interestOps(SelectionKey.OP_WRITE);
+                    return;
+                }
+            }
+            while (conn.bodySent < response.getBodyLength()) {
+                long max = response.getBodyLength() - conn.bodySent;
+                boolean limited = Bandwidth.isUploadLimited();
+                if (limited) {
+                    // Connections already waiting for the limit go first
+                    max = (throttled.isEmpty() || resuming)
+                            ? Bandwidth.tryTakeUpload(conn.peerIP, Math.min(max, Bandwidth.SLICE)) : 0;
+                    if (max == 0) {
+                        conn.key.interestOps(0);
+                        throttled.add(conn);
+                        return;
+                    }
+                }
+                long n = response.sendBody(conn.bodySent, max, conn.channel);
+                if (limited) {
+                    Bandwidth.returnUpload(conn.peerIP, max - n);
+                }
+                if (n == 0) {
+                    conn.key.interestOps(SelectionKey.OP_WRITE);
+                    return;
+                }
+                conn.bodySent += n;
+                uploaded.mark(n);
+                conn.peerUploaded.mark(n);
+            }
+
+            finish(conn);
+            if (response.closeConnection) {
+                close(conn);
+                return;
+            }
+            conn.lastActive = System.currentTimeMillis();
+            conn.key.interestOps(SelectionKey.OP_READ);
+            // The client may have sent the next request already
+            nextRequest(conn);
+        }
+
+        private void finish(Connection conn) {
+            if (conn.response != null) {
+                conn.response.close();
+                conn.response = null;
+                requestSlots.release();
+            }
+            conn.header = null;
+            conn.busy = false;
+        }
+
+        private void closeIdle() {
+            long now = System.currentTimeMillis();
+            if (now - lastIdleCheck < 1000) return;
+            lastIdleCheck = now;
+            for (SelectionKey key : selector.keys()) {
+                Connection conn = (Connection) key.attachment();
+                if (!conn.busy && now - conn.lastActive > IDLE_TIMEOUT_MS) {
+                    close(conn);
+                }
+            }
+        }
+
+        private void close(Connection conn) {
+            if (!conn.channel.isOpen()) return;
+            finish(conn);
+            if (conn.key != null) conn.key.cancel();
+            try {
+                conn.channel.close();
+            }
+            catch (IOException e) {
+                System.err.println(e.getMessage());
+            }
+            connectionSlots.release();
+        }
+    }
+}
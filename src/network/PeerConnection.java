@@ -0,0 +1,67 @@
+package network;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+public class PeerConnection implements Closeable {
+    private static final int CONNECT_TIMEOUT_MS = 5000;
+    // A peer silent this long in the middle of an answer is taken as gone
+    private static final int READ_TIMEOUT_MS = 30_000;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final String key;
+    private final Socket socket;
+    private final DataInputStream in;
+    private final DataOutputStream out;
+
+    private long lastUsed;
+    private boolean reused;
+
+    PeerConnection(String key, String ip, int port) throws IOException {
+        this.key = key;
+        this.socket = new Socket();
+        try {
+            socket.setTcpNoDelay(true);
+            socket.setKeepAlive(true);
+            socket.setSoTimeout(READ_TIMEOUT_MS);
+            socket.connect(new InetSocketAddress(ip, port), CONNECT_TIMEOUT_MS);
+            this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), BUFFER_SIZE));
+            this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), BUFFER_SIZE));
+        }
+        catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+        this.lastUsed = System.currentTimeMillis();
+        this.reused = false;
+    }
+
+    public DataInputStream in()     { return in; }
+    public DataOutputStream out()   { return out; }
+
+    String getKey()                 { return key; }
+    long getLastUsed()              { return lastUsed; }
+
+    // True once the connection went through the idle pool, the peer may have dropped it meanwhile
+    boolean isReused()              { return reused; }
+
+    void markIdle() {
+        lastUsed = System.currentTimeMillis();
+        reused = true;
+    }
+
+    boolean isOpen() {
+        return !socket.isClosed() && socket.isConnected() && !socket.isInputShutdown();
+    }
+
+    @Override
+    public void close() {
+        try {
+            socket.close();
+        }
+        catch (IOException e) {
+            System.err.println(e.getMessage());
+        }
+    }
+}
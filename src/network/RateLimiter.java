@@ -0,0 +1,101 @@
+package network;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Token bucket over bytes. The bucket holds at most a quarter second of traffic, so
+ * a limit is kept to within that even right after an idle stretch. A rate of 0 means
+ * no limit. Waiters queue on a fair lock, so transfers sharing a limiter take turns
+ * slice by slice instead of the first one to ask taking everything.
+ */
+public class RateLimiter {
+    private static final double BURST_SECONDS = 0.25;
+    // Never less than this in the bucket, or no slice could ever be taken whole
+    private static final long MIN_BURST = 64 * 1024;
+
+    private final ReentrantLock lock;
+    private volatile long bytesPerSecond;
+    private double tokens;
+    private long lastRefill;
+
+    public RateLimiter(long bytesPerSecond) {
+        this.lock = new ReentrantLock(true);
+        this.bytesPerSecond = Math.max(0, bytesPerSecond);
+        this.tokens = burst();
+        this.lastRefill = System.nanoTime();
+    }
+
+    public void setRate(long bytesPerSecond) {
+        this.bytesPerSecond = Math.max(0, bytesPerSecond);
+    }
+
+    public long getRate() {
+        return bytesPerSecond;
+    }
+
+    public boolean isLimited() {
+        return bytesPerSecond > 0;
+    }
+
+    // Blocks until bytes may go, at most one burst's worth is asked for at once
+    public void take(long bytes) throws InterruptedIOException {
+        if (!isLimited()) return;
+        lock.lock();
+        try {
+            refill();
+            while (tokens < bytes && isLimited()) {
+                long rate = bytesPerSecond;
+                long waitNanos = (long) ((bytes - tokens) * 1e9 / rate);
+                TimeUnit.NANOSECONDS.sleep(Math.max(waitNanos, 100_000));
+                refill();
+            }
+            tokens -= bytes;
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while rate limited");
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    // Takes whatever is there up to max without waiting, for callers that can't block
+    public long tryTake(long max) {
+        if (!isLimited()) return max;
+        if (!lock.tryLock()) return 0;
+        try {
+            refill();
+            long granted = (long) Math.min(max, Math.max(0, tokens));
+            tokens -= granted;
+            return granted;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    // Gives back what was taken but not used
+    public void giveBack(long bytes) {
+        if (!isLimited() || bytes <= 0) return;
+        lock.lock();
+        try {
+            tokens = Math.min(burst(), tokens + bytes);
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    public long burst() {
+        return Math.max(MIN_BURST, (long) (bytesPerSecond * BURST_SECONDS));
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        tokens = Math.min(burst(), tokens + (now - lastRefill) * bytesPerSecond / 1e9);
+        lastRefill = now;
+    }
+}
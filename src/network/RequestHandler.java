@@ -0,0 +1,520 @@
+package network;
+
+import p2p.Catalog;
+import p2p.CatalogPage;
+import p2p.ChunkManifest;
+import p2p.DownloadEngine;
+import p2p.FileMgr;
+import p2p.FileMetaData;
+import p2p.HashService;
+import p2p.Node;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The protocol side of the file server, shared by the blocking and the selector based
+ * server. A request is read in full first, then answered with a small header and, for
+ * chunks, a region of a file the server sends with transferTo.
+ */
+public class RequestHandler {
+    public static class Request {
+        public final String command;
+        public final String fileHash;
+        public final long offset;
+        public final long length;
+        public final int chunkSize;
+        // The list commands only, null for every other one
+        public final CatalogArgs catalog;
+
+        private Request(String command, String fileHash, long offset, long length, int chunkSize) {
+            this(command, fileHash, offset, length, chunkSize, null);
+        }
+
+        private Request(String command, String fileHash, long offset, long length, int chunkSize,
+                        CatalogArgs catalog) {
+            this.command = command;
+            this.fileHash = fileHash;
+            this.offset = offset;
+            this.length = length;
+            this.chunkSize = chunkSize;
+            this.catalog = catalog;
+        }
+
+        // Throws EOFException if the stream ends before the request is complete
+        public static Request read(DataInputStream in) throws IOException {
+            String command = in.readUTF();
+            switch (command) {
+            case "REQUEST_FILE_SIZE_BY_HASH":
+            case "REQUEST_CHUNK_MANIFEST":
+                return new Request(command, in.readUTF(), 0, 0, 0);
+            case "REQUEST_CHUNK":
+            case "REQUEST_CHUNK_FRAMED": {
+                String fileHash = in.readUTF();
+                long offset = in.readLong();
+                long length = in.readLong();
+                return new Request(command, fileHash, offset, length, 0);
+            }
+            case "REQUEST_PIECE_MAP": {
+                String fileHash = in.readUTF();
+                return new Request(command, fileHash, 0, 0, in.readInt());
+            }
+            case "LIST_FILES": {
+                boolean partial = in.readBoolean();
+                return new Request(command, null, 0, 0, 0,
+                        new CatalogArgs(partial, readAlgorithms(in), 0, 0, null, 0, null));
+            }
+            case "LIST_CHANGES_SINCE": {
+                long epoch = in.readLong();
+                long version = in.readLong();
+                return new Request(command, null, 0, 0, 0,
+                        new CatalogArgs(false, readAlgorithms(in), epoch, version, null, 0, null));
+            }
+            case "CATALOG_PAGE": {
+                long epoch = in.readLong();
+                long version = in.readLong();
+                String cursor = in.readBoolean() ? in.readUTF() : null;
+                int maxEntries = in.readInt();
+                return new Request(command, null, 0, 0, 0,
+                        new CatalogArgs(false, readAlgorithms(in), epoch, version, cursor, maxEntries, null));
+            }
+            case "SEARCH": {
+                String query = in.readUTF();
+                int maxResults = in.readInt();
+                return new Request(command, null, 0, 0, 0,
+                        new CatalogArgs(false, readAlgorithms(in), 0, 0, null, maxResults, query));
+            }
+            default:
+                // Unknown commands carry no arguments we know of
+                return new Request(command, null, 0, 0, 0);
+            }
+        }
+
+        private static Set<String> readAlgorithms(DataInputStream in) throws IOException {
+            int count = in.readInt();
+            if (count < 0 || count > MAX_ALGORITHMS) {
+                throw new IOException("Bad algorithm count: " + count);
+            }
+            Set<String> algorithms = new HashSet<>();
+            for (int i = 0; i < count; i++) {
+                algorithms.add(in.readUTF());
+            }
+            return algorithms;
+        }
+    }
+
+    // Arguments of the list commands, which not all of them use
+    public static class CatalogArgs {
+        // LIST_FILES: partial downloads or whole files
+        public final boolean partial;
+        // The hashes the caller takes
+        public final Set<String> algorithms;
+        // LIST_CHANGES_SINCE and CATALOG_PAGE: the catalog the caller has
+        public final long epoch;
+        public final long version;
+        // CATALOG_PAGE: where the page starts, null for the first one, and its size;
+        // SEARCH: the most results the caller wants
+        public final String cursor;
+        public final int maxEntries;
+        // SEARCH: the words to look for in file names
+        public final String query;
+
+        private CatalogArgs(boolean partial, Set<String> algorithms, long epoch, long version,
+                            String cursor, int maxEntries, String query) {
+            this.partial = partial;
+            this.algorithms = algorithms;
+            this.epoch = epoch;
+            this.version = version;
+            this.cursor = cursor;
+            this.maxEntries = maxEntries;
+            this.query = query;
+        }
+
+        boolean accepts(String fileHash) {
+            return algorithms.contains(HashService.algorithmOf(fileHash));
+        }
+    }
+
+    public static class Response implements AutoCloseable {
+        public final byte[] header;
+        public final boolean closeConnection;
+
+        // Optional file region sent after the header
+        private final FileChannel body;
+        private final long bodyPosition;
+        private final long bodyLength;
+        private final AutoCloseable bodyOwner;
+
+        private Response(byte[] header, boolean closeConnection,
+                         FileChannel body, long bodyPosition, long bodyLength, AutoCloseable bodyOwner) {
+            this.header = header;
+            this.closeConnection = closeConnection;
+            this.body = body;
+            this.bodyPosition = bodyPosition;
+            this.bodyLength = bodyLength;
+            this.bodyOwner = bodyOwner;
+        }
+
+        public long getBodyLength() { return bodyLength; }
+
+        /**
+         * Sends up to {@code max} body bytes from {@code sent} on and returns how many went
+         * out. On a non-blocking channel that may be 0 when the socket buffer is full.
+         */
+        public long sendBody(long sent, long max, WritableByteChannel target) throws IOException {
+            long remaining = Math.min(max, bodyLength - sent);
+            if (remaining <= 0) return 0;
+            long position = bodyPosition + sent;
+            long n = body.transferTo(position, remaining, target);
+            if (n == 0 && position >= body.size()) {
+                throw new EOFException("File shrank while serving it");
+            }
+            return n;
+        }
+
+        @Override
+        public void close() {
+            if (bodyOwner == null) return;
+            try {
+                bodyOwner.close();
+            }
+            catch (Exception e) {
+                System.err.println(e.getMessage());
+            }
+        }
+    }
+
+    private static final int MAX_ALGORITHMS = 32;
+    // As many as a manifest may have chunks, the most a client takes
+    private static final int MAX_PIECE_MAP_WORDS = ChunkManifest.MAX_CHUNKS / 64;
+
+    private static final Set<String> KNOWN_WITHOUT_HASH =
+            Set.of("LIST_SHARED_FILES", "LIST_PARTIAL_FILES", "LIST_FILES", "LIST_CHANGES_SINCE",
+                    "CATALOG_PAGE", "SEARCH", "HASH_ALGORITHMS");
+
+    private static final Set<String> LEGACY_ALGORITHMS = Set.of(HashService.SHA256);
+
+    private final Node node;
+    private final FileChannelCache channelCache;
+
+    public RequestHandler(Node node, int maxOpenFiles) {
+        this.node = node;
+        this.channelCache = new FileChannelCache(maxOpenFiles);
+    }
+
+    public Response handle(Request request) throws IOException {
+        // Unknown commands are lumped together, peers must not be able to invent metric names
+        String command = (request.fileHash != null || KNOWN_WITHOUT_HASH.contains(request.command)) ? request.command : "other";
+        Metrics.meter("server.requests", command).mark(1);
+        long start = System.nanoTime();
+        try {
+            return answer(request);
+        }
+        finally {
+            Metrics.histogram("server.handle.us", command).record((System.nanoTime() - start) / 1000);
+        }
+    }
+
+    private Response answer(Request request) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        DataOutputStream out = new DataOutputStream(bytes);
+
+        switch (request.command) {
+        case "HASH_ALGORITHMS":
+            handleHashAlgorithms(out);
+            break;
+        case "LIST_FILES":
+            if (request.catalog.partial) handleListPartialFiles(out, request.catalog.algorithms);
+            else handleListSharedFiles(out, request.catalog.algorithms);
+            break;
+        case "LIST_CHANGES_SINCE":
+            handleChangesSince(request, out);
+            break;
+        case "CATALOG_PAGE":
+            handleCatalogPage(request, out);
+            break;
+        case "SEARCH":
+            handleSearch(request, out);
+            break;
+        // Older peers only know SHA-256 and these two commands
+        case "LIST_SHARED_FILES":
+            handleListSharedFiles(out, LEGACY_ALGORITHMS);
+            break;
+        case "LIST_PARTIAL_FILES":
+            handleListPartialFiles(out, LEGACY_ALGORITHMS);
+            break;
+        case "REQUEST_FILE_SIZE_BY_HASH":
+            handleFileSizeByHash(request, out);
+            break;
+        case "REQUEST_CHUNK_MANIFEST":
+            handleChunkManifest(request, out);
+            break;
+        case "REQUEST_PIECE_MAP":
+            handlePieceMap(request, out);
+            break;
+        case "REQUEST_CHUNK":
+        case "REQUEST_CHUNK_FRAMED":
+            return handleRequestChunk(request, bytes, out);
+        default:
+            // Unknown arguments may follow, so the stream can't be trusted any more
+            out.writeUTF("ERROR: Unknown command");
+            return new Response(bytes.toByteArray(), true, null, 0, 0, null);
+        }
+        return new Response(bytes.toByteArray(), false, null, 0, 0, null);
+    }
+
+    public void close() {
+        channelCache.closeAll();
+    }
+
+    // Whole files and running downloads in one list, or only what changed since the caller's version
+    private void handleChangesSince(Request request, DataOutputStream out) throws IOException {
+        CatalogArgs args = request.catalog;
+        Catalog.Changes changes = node.getCatalog().changesSince(args.epoch, args.version, args::accepts);
+
+        out.writeUTF("OK");
+        out.writeLong(changes.epoch);
+        out.writeLong(changes.version);
+        out.writeBoolean(changes.full);
+        out.writeInt(changes.added.size());
+        for (FileClient.FileInfo info : changes.added) {
+            out.writeUTF(info.fileHash);
+            out.writeUTF(info.fileName);
+            out.writeLong(info.fileSize);
+            out.writeBoolean(info.partial);
+        }
+        out.writeInt(changes.removed.size());
+        for (String fileHash : changes.removed) {
+            out.writeUTF(fileHash);
+        }
+    }
+
+    // Changes or one page of the catalog, packed, see CatalogPage
+    private void handleCatalogPage(Request request, DataOutputStream out) throws IOException {
+        CatalogArgs args = request.catalog;
+        CatalogPage page = node.getCatalog().page(args.epoch, args.version, args.cursor, args.maxEntries, args::accepts);
+        out.writeUTF("OK");
+        page.write(out);
+    }
+
+    // Files in the catalog whose names hold every word of the query, packed as one page
+    private void handleSearch(Request request, DataOutputStream out) throws IOException {
+        CatalogArgs args = request.catalog;
+        CatalogPage page = node.getCatalog().search(args.query, args.maxEntries, args::accepts);
+        out.writeUTF("OK");
+        page.write(out);
+    }
+
+    private void handleHashAlgorithms(DataOutputStream out) throws IOException {
+        List<String> names = HashService.names();
+        out.writeUTF("OK");
+        out.writeInt(names.size());
+        for (String name : names) {
+            out.writeUTF(name);
+        }
+    }
+
+    // Only files whose content ID the caller can verify
+    private void handleListSharedFiles(DataOutputStream out, Set<String> algorithms) throws IOException {
+        FileMgr fileMgr = node.getFileManager();
+        if (fileMgr == null) {
+            out.writeUTF("ERROR: Node file manager not found");
+            return;
+        }
+
+        List<FileMetaData> sharedFiles = new ArrayList<>();
+        for (FileMetaData meta : fileMgr.getSharedFiles()) {
+            if (algorithms.contains(HashService.algorithmOf(meta.getFileHash()))) {
+                sharedFiles.add(meta);
+            }
+        }
+
+        out.writeUTF("OK");
+        out.writeInt(sharedFiles.size());
+
+        for (FileMetaData meta : sharedFiles) {
+            out.writeUTF(meta.getFileHash());
+            out.writeUTF(meta.getFileName());
+            out.writeLong(meta.getFileSize());
+        }
+    }
+
+    // Downloads still running, offered chunk by chunk as they are verified
+    private void handleListPartialFiles(DataOutputStream out, Set<String> algorithms) throws IOException {
+        FileMgr fileMgr = node.getFileManager();
+        List<Node.PartialFile> partials = new ArrayList<>();
+        for (Node.PartialFile partial : node.getPartialFiles()) {
+            String fileHash = partial.state.getFileHash();
+            if (!algorithms.contains(HashService.algorithmOf(fileHash))) continue;
+            if (fileMgr == null || fileMgr.getFileMetaDataByHash(fileHash) == null) {
+                partials.add(partial);
+            }
+        }
+
+        out.writeUTF("OK");
+        out.writeInt(partials.size());
+        for (Node.PartialFile partial : partials) {
+            out.writeUTF(partial.state.getFileHash());
+            out.writeUTF(partial.fileName);
+            out.writeLong(partial.state.getFileSize());
+        }
+    }
+
+    private void handleFileSizeByHash(Request request, DataOutputStream out) throws IOException {
+        FileMgr fileMgr = node.getFileManager();
+        if (fileMgr == null) {
+            out.writeUTF("ERROR: Node file manager not found");
+            return;
+        }
+
+        FileMetaData meta = fileMgr.getFileMetaDataByHash(request.fileHash);
+        if (meta == null || meta.getFile() == null || !meta.getFile().exists()) {
+            Node.PartialFile partial = node.getPartialFile(request.fileHash);
+            if (partial == null) {
+                out.writeUTF("ERROR: File not found");
+                return;
+            }
+            out.writeUTF("OK");
+            out.writeLong(partial.state.getFileSize());
+            return;
+        }
+
+        out.writeUTF("OK");
+        out.writeLong(meta.getFile().length());
+    }
+
+    private void handleChunkManifest(Request request, DataOutputStream out) throws IOException {
+        FileMgr fileMgr = node.getFileManager();
+        if (fileMgr == null) {
+            out.writeUTF("ERROR: Node file manager not found");
+            return;
+        }
+
+        ChunkManifest manifest;
+        try {
+            manifest = fileMgr.getChunkManifest(request.fileHash, DownloadEngine.DEFAULT_CHUNK_SIZE);
+        }
+        catch (IOException | NoSuchAlgorithmException e) {
+            out.writeUTF("ERROR: " + e.getMessage());
+            return;
+        }
+        if (manifest == null) {
+            // A download in progress passes on the manifest it was given
+            Node.PartialFile partial = node.getPartialFile(request.fileHash);
+            if (partial == null) {
+                out.writeUTF("ERROR: File not found");
+                return;
+            }
+            manifest = partial.manifest;
+        }
+
+        out.writeUTF("OK");
+        manifest.write(out);
+    }
+
+    // Which chunks of a file this node has, whole files and downloads still running alike
+    private void handlePieceMap(Request request, DataOutputStream out) throws IOException {
+        if (request.chunkSize <= 0) {
+            out.writeUTF("ERROR: Bad chunk size");
+            return;
+        }
+
+        BitSet have = node.getPieceMap(request.fileHash, request.chunkSize);
+        if (have == null) {
+            out.writeUTF("ERROR: No piece map for this file and chunk size");
+            return;
+        }
+
+        long[] words = have.toLongArray();
+        if (words.length > MAX_PIECE_MAP_WORDS) {
+            out.writeUTF("ERROR: Piece map too large");
+            return;
+        }
+        out.writeUTF("OK");
+        out.writeInt(words.length);
+        for (long w : words) {
+            out.writeLong(w);
+        }
+    }
+
+    private Response handleRequestChunk(Request request, ByteArrayOutputStream bytes, DataOutputStream out)
+            throws IOException {
+        FileMgr fileMgr = node.getFileManager();
+        if (fileMgr == null) {
+            out.writeUTF("ERROR: Node file manager not found");
+            return new Response(bytes.toByteArray(), false, null, 0, 0, null);
+        }
+
+        FileMetaData meta = fileMgr.getFileMetaDataByHash(request.fileHash);
+        if (meta == null || meta.getFile() == null || !meta.getFile().exists()) {
+            return servePartialChunk(request, bytes, out);
+        }
+
+        // Straight from the page cache to the socket, no copy through the heap
+        FileChannelCache.Handle handle = channelCache.acquire(meta.getFile());
+        try {
+            long size = handle.channel().size();
+            if (!isValidRange(request, size)) {
+                handle.close();
+                out.writeUTF("ERROR: Bad range");
+                return new Response(bytes.toByteArray(), false, null, 0, 0, null);
+            }
+            long length = Math.min(request.length, size - request.offset);
+            writeChunkHeader(request, length, out);
+            return new Response(bytes.toByteArray(), endsShort(request, length),
+                    handle.channel(), request.offset, length, handle);
+        }
+        catch (IOException e) {
+            handle.close();
+            throw e;
+        }
+    }
+
+    // REQUEST_CHUNK_FRAMED tells the length, the old REQUEST_CHUNK sends the bytes right after OK
+    private static void writeChunkHeader(Request request, long length, DataOutputStream out) throws IOException {
+        out.writeUTF("OK");
+        if (request.command.equals("REQUEST_CHUNK_FRAMED")) {
+            out.writeLong(length);
+        }
+    }
+
+    // Old clients read until they have the whole chunk or the stream ends, so a short one ends it
+    private static boolean endsShort(Request request, long length) {
+        return request.command.equals("REQUEST_CHUNK") && length < request.length;
+    }
+
+    // As the peer sent them, a range may start at the end of the file but not past it
+    private static boolean isValidRange(Request request, long size) {
+        return request.offset >= 0 && request.length >= 0 && request.offset <= size;
+    }
+
+    // Only whole verified chunks of a running download go out, anything else could be garbage
+    private Response servePartialChunk(Request request, ByteArrayOutputStream bytes, DataOutputStream out)
+            throws IOException {
+        Node.PartialFile partial = node.getPartialFile(request.fileHash);
+        if (partial == null) {
+            out.writeUTF("ERROR: File not found");
+            return new Response(bytes.toByteArray(), false, null, 0, 0, null);
+        }
+
+        if (!isValidRange(request, partial.state.getFileSize())) {
+            out.writeUTF("ERROR: Bad range");
+            return new Response(bytes.toByteArray(), false, null, 0, 0, null);
+        }
+        long length = Math.min(request.length, partial.state.getFileSize() - request.offset);
+        if (!partial.hasRange(request.offset, length)) {
+            out.writeUTF("ERROR: Chunk not available");
+            return new Response(bytes.toByteArray(), false, null, 0, 0, null);
+        }
+        writeChunkHeader(request, length, out);
+        return new Response(bytes.toByteArray(), endsShort(request, length),
+                partial.storage.getChannel(), request.offset, length, null);
+    }
+}
@@ -0,0 +1,106 @@
+package network;
+
+import java.lang.reflect.Method;
+import java.util.Set;
+import java.util.concurrent.*;
+
+/**
+ * Where the node's blocking work runs. Platform threads by default; with
+ * {@link #useVirtualThreads} and a JVM that has them (21 and later) every server
+ * handler, transfer and background loop gets a virtual thread instead, so the blocking
+ * stream code can run by the ten thousand.
+ * <p>
+ * An instance is a scope: threads started through it are interrupted together by
+ * {@link #cancelAll}, and each of them stops the work it handed out in turn.
+ * Virtual threads blocked on a socket give up at once.
+ */
+public class Workers {
+    private static final boolean VIRTUAL_SUPPORTED = virtualFactory("probe") != null;
+    private static volatile boolean virtual = false;
+
+    private final Set<Thread> threads;
+
+    public Workers() {
+        this.threads = ConcurrentHashMap.newKeySet();
+    }
+
+    // False if this JVM has no virtual threads, everything stays on platform threads then
+    public static boolean useVirtualThreads(boolean on) {
+        if (on && !VIRTUAL_SUPPORTED) {
+            System.err.println("Virtual threads need Java 21 or later, staying on platform threads");
+            return false;
+        }
+        virtual = on;
+        return true;
+    }
+
+    public static boolean isVirtual() {
+        return virtual;
+    }
+
+    public static ThreadFactory threadFactory(String name) {
+        if (virtual) return virtualFactory(name);
+        return task -> new Thread(task, name);
+    }
+
+    // A new thread for every task; a cached pool reuses platform threads as it did before
+    public static ExecutorService newTaskExecutor(String name) {
+        if (virtual) {
+            try {
+                Method perTask = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+                return (ExecutorService) perTask.invoke(null, virtualFactory(name));
+            }
+            catch (ReflectiveOperationException e) {
+                System.err.println(e.getMessage());
+            }
+        }
+        return Executors.newCachedThreadPool(threadFactory(name));
+    }
+
+    // Starts a long-running task that belongs to this scope
+    public Thread start(String name, Runnable task) {
+        Thread t = threadFactory(name).newThread(() -> {
+            try {
+                task.run();
+            }
+            finally {
+                threads.remove(Thread.currentThread());
+            }
+        });
+        threads.add(t);
+        t.start();
+        return t;
+    }
+
+    // Interrupts everything in the scope and waits up to timeoutMs for it to stop
+    public void cancelAll(long timeoutMs) {
+        for (Thread t : threads) {
+            t.interrupt();
+        }
+
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        try {
+            for (Thread t : threads) {
+                if (t == Thread.currentThread()) continue;
+                t.join(Math.max(1, deadline - System.currentTimeMillis()));
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        threads.clear();
+    }
+
+    // Thread.ofVirtual().name(name + "-", 0).factory(), looked up so the sources still build on 17
+    private static ThreadFactory virtualFactory(String name) {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> builderType = Class.forName("java.lang.Thread$Builder");
+            builder = builderType.getMethod("name", String.class, long.class).invoke(builder, name + "-", 0L);
+            return (ThreadFactory) builderType.getMethod("factory").invoke(builder);
+        }
+        catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+}
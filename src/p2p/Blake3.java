@@ -0,0 +1,216 @@
+package p2p;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * BLAKE3 hash, 32 byte output, plain hashing mode only (no key, no derive, no XOF).
+ * <p>
+ * The input is split into 1 KB chunks that are hashed independently and combined in a
+ * binary tree, so a large file is hashed as parallel 1 MB segments on the common pool,
+ * each read with positional reads of its own. The result does not depend on how the
+ * work was split.
+ */
+public class Blake3 {
+    private static final int CHUNK_LEN = 1024;
+    private static final int BLOCK_LEN = 64;
+    // Chunks per segment, a power of two so segments line up with subtrees
+    private static final long SEGMENT_CHUNKS = 1024;
+
+    private static final int CHUNK_START = 1;
+    private static final int CHUNK_END = 2;
+    private static final int PARENT = 4;
+    private static final int ROOT = 8;
+
+    private static final int[] IV = {
+            0x6A09E667, 0xBB67AE85, 0x3C6EF372, 0xA54FF53A,
+            0x510E527F, 0x9B05688C, 0x1F83D9AB, 0x5BE0CD19
+    };
+
+    // Message word order of each of the seven rounds
+    private static final int[][] SCHEDULE = new int[7][16];
+    static {
+        int[] permutation = { 2, 6, 3, 10, 7, 0, 4, 13, 1, 11, 12, 5, 9, 14, 15, 8 };
+        for (int i = 0; i < 16; i++) {
+            SCHEDULE[0][i] = i;
+        }
+        for (int r = 1; r < 7; r++) {
+            for (int i = 0; i < 16; i++) {
+                SCHEDULE[r][i] = SCHEDULE[r - 1][permutation[i]];
+            }
+        }
+    }
+
+    private static final ThreadLocal<ByteBuffer> segmentBuffers = ThreadLocal.withInitial(
+            () -> ByteBuffer.allocateDirect((int) (SEGMENT_CHUNKS * CHUNK_LEN)).order(ByteOrder.LITTLE_ENDIAN));
+
+    public static byte[] hash(byte[] data, int offset, int length) {
+        ByteBuffer buf = ByteBuffer.wrap(data, offset, length).slice().order(ByteOrder.LITTLE_ENDIAN);
+        return toBytes(subtree(buf, 0, 0, chunkCount(length), length, true));
+    }
+
+    // The first size bytes of channel, read with positional reads
+    public static byte[] hash(FileChannel channel, long size) throws IOException {
+        SubtreeTask task = new SubtreeTask(channel, size, 0, chunkCount(size), true);
+        int[] root = (task.count > SEGMENT_CHUNKS) ? ForkJoinPool.commonPool().invoke(task) : task.invoke();
+        if (task.failure != null) throw task.failure;
+        return toBytes(root);
+    }
+
+    private static long chunkCount(long size) {
+        return Math.max(1, (size + CHUNK_LEN - 1) / CHUNK_LEN);
+    }
+
+    // Chunks [start, start + count) of a file, halved down to single segments read from disk
+    private static class SubtreeTask extends RecursiveTask<int[]> {
+        private final FileChannel channel;
+        private final long size;
+        private final long start;
+        private final long count;
+        private final boolean root;
+        private IOException failure;
+
+        SubtreeTask(FileChannel channel, long size, long start, long count, boolean root) {
+            this.channel = channel;
+            this.size = size;
+            this.start = start;
+            this.count = count;
+            this.root = root;
+        }
+
+        @Override
+        protected int[] compute() {
+            if (count <= SEGMENT_CHUNKS) {
+                try {
+                    return readSegment();
+                }
+                catch (IOException e) {
+                    failure = e;
+                    return new int[8];
+                }
+            }
+            long left = Long.highestOneBit(count - 1);
+            SubtreeTask l = new SubtreeTask(channel, size, start, left, false);
+            SubtreeTask r = new SubtreeTask(channel, size, start + left, count - left, false);
+            r.fork();
+            int[] lcv = l.compute();
+            int[] rcv = r.join();
+            failure = (l.failure != null) ? l.failure : r.failure;
+            return parent(lcv, rcv, root);
+        }
+
+        private int[] readSegment() throws IOException {
+            long origin = start * CHUNK_LEN;
+            int length = (int) Math.min(count * CHUNK_LEN, size - origin);
+            ByteBuffer buf = segmentBuffers.get();
+            buf.clear().limit(length);
+            while (buf.hasRemaining()) {
+                if (channel.read(buf, origin + buf.position()) < 0) {
+                    throw new EOFException("File shrank while hashing");
+                }
+            }
+            return subtree(buf, origin, start, count, size, root);
+        }
+    }
+
+    // buf holds the input from byte origin on, at least up to the end of the subtree
+    private static int[] subtree(ByteBuffer buf, long origin, long start, long count, long size, boolean root) {
+        if (count == 1) {
+            return chunk(buf, origin, start, size, root);
+        }
+        // The left subtree takes the largest power of two chunks that leaves some for the right
+        long left = Long.highestOneBit(count - 1);
+        int[] l = subtree(buf, origin, start, left, size, false);
+        int[] r = subtree(buf, origin, start + left, count - left, size, false);
+        return parent(l, r, root);
+    }
+
+    private static int[] chunk(ByteBuffer buf, long origin, long index, long size, boolean root) {
+        long chunkStart = index * CHUNK_LEN;
+        int length = (int) Math.min(CHUNK_LEN, size - chunkStart);
+        int pos = (int) (chunkStart - origin);
+        int blocks = Math.max(1, (length + BLOCK_LEN - 1) / BLOCK_LEN);
+
+        int[] cv = IV.clone();
+        int[] m = new int[16];
+        for (int b = 0; b < blocks; b++) {
+            int blockLen = Math.min(BLOCK_LEN, length - b * BLOCK_LEN);
+            int at = pos + b * BLOCK_LEN;
+            if (blockLen == BLOCK_LEN) {
+                for (int i = 0; i < 16; i++) {
+                    m[i] = buf.getInt(at + 4 * i);
+                }
+            }
+            else {
+                // The last block is zero padded
+                byte[] block = new byte[BLOCK_LEN];
+                for (int i = 0; i < blockLen; i++) {
+                    block[i] = buf.get(at + i);
+                }
+                ByteBuffer padded = ByteBuffer.wrap(block).order(ByteOrder.LITTLE_ENDIAN);
+                for (int i = 0; i < 16; i++) {
+                    m[i] = padded.getInt(4 * i);
+                }
+            }
+            int flags = 0;
+            if (b == 0) flags |= CHUNK_START;
+            if (b == blocks - 1) flags |= CHUNK_END | (root ? ROOT : 0);
+            compress(cv, m, index, blockLen, flags);
+        }
+        return cv;
+    }
+
+    private static int[] parent(int[] left, int[] right, boolean root) {
+        int[] m = new int[16];
+        System.arraycopy(left, 0, m, 0, 8);
+        System.arraycopy(right, 0, m, 8, 8);
+        int[] cv = IV.clone();
+        compress(cv, m, 0, BLOCK_LEN, PARENT | (root ? ROOT : 0));
+        return cv;
+    }
+
+    // Replaces cv with the first half of the compression output
+    private static void compress(int[] cv, int[] m, long counter, int blockLen, int flags) {
+        int v0 = cv[0], v1 = cv[1], v2 = cv[2], v3 = cv[3];
+        int v4 = cv[4], v5 = cv[5], v6 = cv[6], v7 = cv[7];
+        int v8 = IV[0], v9 = IV[1], v10 = IV[2], v11 = IV[3];
+        int v12 = (int) counter, v13 = (int) (counter >>> 32), v14 = blockLen, v15 = flags;
+
+        for (int[] s : SCHEDULE) {
+            // Columns
+            v0 += v4 + m[s[0]];  v12 = Integer.rotateRight(v12 ^ v0, 16); v8 += v12;  v4 = Integer.rotateRight(v4 ^ v8, 12);
+            v0 += v4 + m[s[1]];  v12 = Integer.rotateRight(v12 ^ v0, 8);  v8 += v12;  v4 = Integer.rotateRight(v4 ^ v8, 7);
+            v1 += v5 + m[s[2]];  v13 = Integer.rotateRight(v13 ^ v1, 16); v9 += v13;  v5 = Integer.rotateRight(v5 ^ v9, 12);
+            v1 += v5 + m[s[3]];  v13 = Integer.rotateRight(v13 ^ v1, 8);  v9 += v13;  v5 = Integer.rotateRight(v5 ^ v9, 7);
+            v2 += v6 + m[s[4]];  v14 = Integer.rotateRight(v14 ^ v2, 16); v10 += v14; v6 = Integer.rotateRight(v6 ^ v10, 12);
+            v2 += v6 + m[s[5]];  v14 = Integer.rotateRight(v14 ^ v2, 8);  v10 += v14; v6 = Integer.rotateRight(v6 ^ v10, 7);
+            v3 += v7 + m[s[6]];  v15 = Integer.rotateRight(v15 ^ v3, 16); v11 += v15; v7 = Integer.rotateRight(v7 ^ v11, 12);
+            v3 += v7 + m[s[7]];  v15 = Integer.rotateRight(v15 ^ v3, 8);  v11 += v15; v7 = Integer.rotateRight(v7 ^ v11, 7);
+            // Diagonals
+            v0 += v5 + m[s[8]];  v15 = Integer.rotateRight(v15 ^ v0, 16); v10 += v15; v5 = Integer.rotateRight(v5 ^ v10, 12);
+            v0 += v5 + m[s[9]];  v15 = Integer.rotateRight(v15 ^ v0, 8);  v10 += v15; v5 = Integer.rotateRight(v5 ^ v10, 7);
+            v1 += v6 + m[s[10]]; v12 = Integer.rotateRight(v12 ^ v1, 16); v11 += v12; v6 = Integer.rotateRight(v6 ^ v11, 12);
+            v1 += v6 + m[s[11]]; v12 = Integer.rotateRight(v12 ^ v1, 8);  v11 += v12; v6 = Integer.rotateRight(v6 ^ v11, 7);
+            v2 += v7 + m[s[12]]; v13 = Integer.rotateRight(v13 ^ v2, 16); v8 += v13;  v7 = Integer.rotateRight(v7 ^ v8, 12);
+            v2 += v7 + m[s[13]]; v13 = Integer.rotateRight(v13 ^ v2, 8);  v8 += v13;  v7 = Integer.rotateRight(v7 ^ v8, 7);
+            v3 += v4 + m[s[14]]; v14 = Integer.rotateRight(v14 ^ v3, 16); v9 += v14;  v4 = Integer.rotateRight(v4 ^ v9, 12);
+            v3 += v4 + m[s[15]]; v14 = Integer.rotateRight(v14 ^ v3, 8);  v9 += v14;  v4 = Integer.rotateRight(v4 ^ v9, 7);
+        }
+
+        cv[0] = v0 ^ v8;  cv[1] = v1 ^ v9;  cv[2] = v2 ^ v10; cv[3] = v3 ^ v11;
+        cv[4] = v4 ^ v12; cv[5] = v5 ^ v13; cv[6] = v6 ^ v14; cv[7] = v7 ^ v15;
+    }
+
+    private static byte[] toBytes(int[] words) {
+        ByteBuffer out = ByteBuffer.allocate(32).order(ByteOrder.LITTLE_ENDIAN);
+        for (int w : words) {
+            out.putInt(w);
+        }
+        return out.array();
+    }
+}
@@ -0,0 +1,213 @@
+package p2p;
+
+import network.FileClient.FileInfo;
+
+import java.util.*;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+/**
+ * What this node offers to peers, whole files and running downloads, with a version
+ * that goes up on every change and a log of recent changes. A peer that tells which
+ * version it has gets only what changed since, a peer too far behind or one that saw
+ * an earlier run of this node (another epoch) gets everything.
+ * <p>
+ * The catalog is rebuilt from its source lazily, on the first request after
+ * {@link #markDirty}, so a burst of local changes costs one diff.
+ */
+public class Catalog {
+    // The log is never shorter than this, nor longer than the catalog itself
+    private static final int MIN_LOG = 1024;
+
+    public static class Changes {
+        public final long epoch;
+        public final long version;
+        // If true, added is the whole catalog and replaces whatever the peer had
+        public final boolean full;
+        public final List<FileInfo> added;
+        public final List<String> removed;
+
+        public Changes(long epoch, long version, boolean full, List<FileInfo> added, List<String> removed) {
+            this.epoch = epoch;
+            this.version = version;
+            this.full = full;
+            this.added = added;
+            this.removed = removed;
+        }
+    }
+
+    // One file added, replaced or removed (info null) at version
+    private static class Change {
+        final long version;
+        final String fileHash;
+        final FileInfo info;
+
+        Change(long version, String fileHash, FileInfo info) {
+            this.version = version;
+            this.fileHash = fileHash;
+            this.info = info;
+        }
+    }
+
+    private final Supplier<Collection<FileInfo>> source;
+    private final long epoch;
+    private long version;
+    // Oldest version the log can still bring up to date
+    private long logStart;
+    private Map<String, FileInfo> entries;
+    // The same entries by name, then content ID, for paging through them
+    private final TreeMap<String, FileInfo> byName;
+    // The same entries by content ID, for SEARCH
+    private final NameIndex<String> names;
+    private final ArrayDeque<Change> log;
+    private volatile boolean dirty;
+
+    public Catalog(Supplier<Collection<FileInfo>> source) {
+        this.source = source;
+        // Never 0, which is what a peer that has seen nothing sends
+        long e;
+        do {
+            e = new Random().nextLong();
+        } while (e == 0);
+        this.epoch = e;
+        this.entries = new HashMap<>();
+        this.byName = new TreeMap<>();
+        this.names = new NameIndex<>();
+        this.log = new ArrayDeque<>();
+        this.dirty = true;
+    }
+
+    public void markDirty() {
+        dirty = true;
+    }
+
+    public synchronized long getVersion() {
+        refresh();
+        return version;
+    }
+
+    /**
+     * What changed after version {@code since} of epoch {@code sinceEpoch}, limited to
+     * files whose content ID passes accept. A file added and removed again in between
+     * shows up only as removed.
+     */
+    public synchronized Changes changesSince(long sinceEpoch, long since, Predicate<String> accept) {
+        refresh();
+        if (sinceEpoch != epoch || since < logStart || since > version) {
+            List<FileInfo> all = new ArrayList<>();
+            for (FileInfo info : entries.values()) {
+                if (accept.test(info.fileHash)) all.add(info);
+            }
+            return new Changes(epoch, version, true, all, List.of());
+        }
+
+        // Only the last change of each file counts, the log is in version order
+        Map<String, FileInfo> latest = new LinkedHashMap<>();
+        Iterator<Change> iter = log.descendingIterator();
+        while (iter.hasNext()) {
+            Change change = iter.next();
+            if (change.version <= since) break;
+            if (!latest.containsKey(change.fileHash)) latest.put(change.fileHash, change.info);
+        }
+        List<FileInfo> added = new ArrayList<>();
+        List<String> removed = new ArrayList<>();
+        for (Map.Entry<String, FileInfo> e : latest.entrySet()) {
+            if (!accept.test(e.getKey())) continue;
+            if (e.getValue() != null) added.add(e.getValue());
+            else removed.add(e.getKey());
+        }
+        return new Changes(epoch, version, false, added, removed);
+    }
+
+    /**
+     * Changes since version {@code since} of epoch {@code sinceEpoch} if there are few
+     * enough for one page, otherwise the first page of the whole catalog. With a cursor,
+     * the page of the whole catalog that starts after it, whatever the version.
+     */
+    public synchronized CatalogPage page(long sinceEpoch, long since, String cursor, int maxEntries,
+                                         Predicate<String> accept) {
+        refresh();
+        maxEntries = Math.max(1, Math.min(maxEntries, CatalogPage.MAX_ENTRIES));
+        if (cursor == null && sinceEpoch == epoch && since >= logStart && since <= version) {
+            Changes changes = changesSince(sinceEpoch, since, accept);
+            if (changes.added.size() + changes.removed.size() <= maxEntries) {
+                // Sorted by name so the names pack as well as in full pages
+                List<FileInfo> added = new ArrayList<>(changes.added);
+                added.sort(Comparator.comparing(Catalog::pageKey));
+                return new CatalogPage(epoch, version, true, null, added, changes.removed);
+            }
+        }
+
+        List<FileInfo> added = new ArrayList<>();
+        int bytes = 0;
+        String last = null;
+        Map<String, FileInfo> rest = (cursor == null) ? byName : byName.tailMap(cursor, false);
+        for (Map.Entry<String, FileInfo> e : rest.entrySet()) {
+            if (added.size() >= maxEntries || bytes >= CatalogPage.TARGET_BYTES) {
+                return new CatalogPage(epoch, version, false, last, added, List.of());
+            }
+            last = e.getKey();
+            if (!accept.test(e.getValue().fileHash)) continue;
+            added.add(e.getValue());
+            bytes += CatalogPage.estimateBytes(e.getValue());
+        }
+        return new CatalogPage(epoch, version, false, null, added, List.of());
+    }
+
+    // Up to maxEntries entries whose name holds every word of the query, see NameIndex
+    public synchronized CatalogPage search(String query, int maxEntries, Predicate<String> accept) {
+        refresh();
+        maxEntries = Math.max(1, Math.min(maxEntries, CatalogPage.MAX_ENTRIES));
+        List<FileInfo> found = new ArrayList<>();
+        for (String fileHash : names.search(query, maxEntries, accept)) {
+            found.add(entries.get(fileHash));
+        }
+        found.sort(Comparator.comparing(Catalog::pageKey));
+        return new CatalogPage(epoch, version, false, null, found, List.of());
+    }
+
+    private static String pageKey(FileInfo info) {
+        return info.fileName + '\u0000' + info.fileHash;
+    }
+
+    // Diffs the source against the last known catalog and logs the differences as one version
+    private void refresh() {
+        if (!dirty) return;
+        dirty = false;
+
+        Map<String, FileInfo> next = new HashMap<>();
+        for (FileInfo info : source.get()) {
+            next.put(info.fileHash, info);
+        }
+        List<Change> changes = new ArrayList<>();
+        for (FileInfo info : next.values()) {
+            FileInfo old = entries.get(info.fileHash);
+            if (old == null || !sameEntry(old, info)) {
+                changes.add(new Change(version + 1, info.fileHash, info));
+                if (old != null) byName.remove(pageKey(old));
+                byName.put(pageKey(info), info);
+                names.put(info.fileHash, info.fileName);
+            }
+        }
+        for (FileInfo old : entries.values()) {
+            if (!next.containsKey(old.fileHash)) {
+                changes.add(new Change(version + 1, old.fileHash, null));
+                byName.remove(pageKey(old));
+                names.remove(old.fileHash);
+            }
+        }
+        entries = next;
+        if (changes.isEmpty()) return;
+
+        version++;
+        log.addAll(changes);
+        int maxLog = Math.max(MIN_LOG, entries.size());
+        while (log.size() > maxLog) {
+            logStart = log.removeFirst().version;
+        }
+    }
+
+    private static boolean sameEntry(FileInfo a, FileInfo b) {
+        return a.fileName.equals(b.fileName) && a.fileSize == b.fileSize && a.partial == b.partial;
+    }
+}
@@ -0,0 +1,297 @@
+package p2p;
+
+import network.FileClient.FileInfo;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * One answer to CATALOG_PAGE: either the changes since the version the peer asked from,
+ * or a page of the whole catalog in name order with a cursor to the next one.
+ * <p>
+ * Entries are packed: a SHA-256 content ID goes as its 32 raw bytes, other IDs as
+ * algorithm name and raw digest; numbers are varints; each name keeps the bytes it
+ * shares with the one before it. The packed entries are deflated when that makes them
+ * smaller. A page holds at most {@link #MAX_ENTRIES} entries and about
+ * {@link #TARGET_BYTES} of them, so neither side ever holds more than that at once.
+ */
+public class CatalogPage {
+    public static final int MAX_ENTRIES = 4096;
+    public static final int TARGET_BYTES = 256 * 1024;
+    // Names are at most 64 KB, so a page can't legitimately get near this
+    private static final int MAX_PACKED_BYTES = 64 * 1024 * 1024;
+    private static final int MIN_DEFLATE_BYTES = 512;
+
+    private static final int DELTA = 1;
+    private static final int MORE = 2;
+    private static final int DEFLATED = 4;
+
+    private static final int PARTIAL = 1;
+    private static final int ID_SHA256 = 0;
+    private static final int ID_NAMED = 2;
+    private static final int ID_OTHER = 4;
+    private static final int ID_KIND = 6;
+
+    public final long epoch;
+    public final long version;
+    // Changes since the caller's version rather than a slice of the whole catalog
+    public final boolean delta;
+    // Where the next page starts, null on the last one
+    public final String nextCursor;
+    public final List<FileInfo> added;
+    public final List<String> removed;
+
+    public CatalogPage(long epoch, long version, boolean delta, String nextCursor,
+                       List<FileInfo> added, List<String> removed) {
+        this.epoch = epoch;
+        this.version = version;
+        this.delta = delta;
+        this.nextCursor = nextCursor;
+        this.added = added;
+        this.removed = removed;
+    }
+
+    // Rough packed size of an entry, for cutting pages
+    static int estimateBytes(FileInfo info) {
+        return info.fileName.length() + 48;
+    }
+
+    public void write(DataOutputStream out) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(16 * 1024);
+        DataOutputStream packed = new DataOutputStream(bytes);
+        writeVarLong(packed, added.size());
+        byte[] previous = new byte[0];
+        for (FileInfo info : added) {
+            byte[] name = info.fileName.getBytes(StandardCharsets.UTF_8);
+            int shared = sharedPrefix(previous, name);
+            packed.writeByte(idKind(info.fileHash) | (info.partial ? PARTIAL : 0));
+            writeId(packed, info.fileHash);
+            writeVarLong(packed, shared);
+            writeVarLong(packed, name.length - shared);
+            packed.write(name, shared, name.length - shared);
+            writeVarLong(packed, info.fileSize);
+            previous = name;
+        }
+        writeVarLong(packed, removed.size());
+        for (String fileHash : removed) {
+            packed.writeByte(idKind(fileHash));
+            writeId(packed, fileHash);
+        }
+        packed.flush();
+
+        byte[] body = bytes.toByteArray();
+        int flags = (delta ? DELTA : 0) | (nextCursor != null ? MORE : 0);
+        byte[] deflated = (body.length >= MIN_DEFLATE_BYTES) ? deflate(body) : null;
+        if (deflated != null && deflated.length < body.length) {
+            flags |= DEFLATED;
+        }
+
+        out.writeLong(epoch);
+        out.writeLong(version);
+        out.writeByte(flags);
+        if (nextCursor != null) out.writeUTF(nextCursor);
+        out.writeInt(body.length);
+        if ((flags & DEFLATED) != 0) {
+            out.writeInt(deflated.length);
+            out.write(deflated);
+        }
+        else {
+            out.write(body);
+        }
+    }
+
+    public static CatalogPage read(DataInputStream in) throws IOException {
+        long epoch = in.readLong();
+        long version = in.readLong();
+        int flags = in.readUnsignedByte();
+        String nextCursor = ((flags & MORE) != 0) ? in.readUTF() : null;
+        int length = in.readInt();
+        if (length < 0 || length > MAX_PACKED_BYTES) {
+            throw new IOException("Malformed catalog page");
+        }
+        byte[] body = new byte[length];
+        if ((flags & DEFLATED) != 0) {
+            int deflatedLength = in.readInt();
+            if (deflatedLength < 0 || deflatedLength > MAX_PACKED_BYTES) {
+                throw new IOException("Malformed catalog page");
+            }
+            byte[] deflated = new byte[deflatedLength];
+            in.readFully(deflated);
+            inflate(deflated, body);
+        }
+        else {
+            in.readFully(body);
+        }
+
+        DataInputStream packed = new DataInputStream(new ByteArrayInputStream(body));
+        int addedCount = readCount(packed);
+        List<FileInfo> added = new ArrayList<>(addedCount);
+        byte[] previous = new byte[0];
+        for (int i = 0; i < addedCount; i++) {
+            int kind = packed.readUnsignedByte();
+            String fileHash = readId(packed, kind & ID_KIND);
+            int shared = (int) readVarLong(packed);
+            int rest = (int) readVarLong(packed);
+            if (shared > previous.length || rest < 0 || rest > length) {
+                throw new IOException("Malformed catalog page");
+            }
+            byte[] name = new byte[shared + rest];
+            System.arraycopy(previous, 0, name, 0, shared);
+            packed.readFully(name, shared, rest);
+            long size = readVarLong(packed);
+            added.add(new FileInfo(fileHash, new String(name, StandardCharsets.UTF_8), size, (kind & PARTIAL) != 0));
+            previous = name;
+        }
+        int removedCount = readCount(packed);
+        List<String> removed = new ArrayList<>(removedCount);
+        for (int i = 0; i < removedCount; i++) {
+            removed.add(readId(packed, packed.readUnsignedByte() & ID_KIND));
+        }
+        return new CatalogPage(epoch, version, (flags & DELTA) != 0, nextCursor, added, removed);
+    }
+
+    private static int idKind(String fileHash) {
+        if (fileHash.length() == 64 && isHex(fileHash, 0, 64)) return ID_SHA256;
+        // A named SHA-256 ID would come back bare, so it stays as it is
+        int colon = fileHash.indexOf(':');
+        if (colon > 0 && !fileHash.startsWith(HashService.SHA256 + ":")
+                && (fileHash.length() - colon - 1) % 2 == 0
+                && isHex(fileHash, colon + 1, fileHash.length() - colon - 1)) {
+            return ID_NAMED;
+        }
+        return ID_OTHER;
+    }
+
+    private static void writeId(DataOutputStream out, String fileHash) throws IOException {
+        switch (idKind(fileHash)) {
+        case ID_SHA256:
+            out.write(HexFormat.of().parseHex(fileHash));
+            break;
+        case ID_NAMED: {
+            int colon = fileHash.indexOf(':');
+            writeBytes(out, fileHash.substring(0, colon).getBytes(StandardCharsets.UTF_8));
+            writeBytes(out, HexFormat.of().parseHex(fileHash, colon + 1, fileHash.length()));
+            break;
+        }
+        default:
+            writeBytes(out, fileHash.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    private static String readId(DataInputStream in, int kind) throws IOException {
+        switch (kind) {
+        case ID_SHA256: {
+            byte[] digest = new byte[32];
+            in.readFully(digest);
+            return HexFormat.of().formatHex(digest);
+        }
+        case ID_NAMED: {
+            String algorithm = new String(readBytes(in), StandardCharsets.UTF_8);
+            return HashService.contentId(algorithm, readBytes(in));
+        }
+        case ID_OTHER:
+            return new String(readBytes(in), StandardCharsets.UTF_8);
+        default:
+            throw new IOException("Malformed catalog page");
+        }
+    }
+
+    private static boolean isHex(String s, int from, int count) {
+        if (from + count > s.length()) return false;
+        for (int i = from; i < from + count; i++) {
+            if (Character.digit(s.charAt(i), 16) < 0 || Character.isUpperCase(s.charAt(i))) return false;
+        }
+        return true;
+    }
+
+    private static int sharedPrefix(byte[] a, byte[] b) {
+        int n = Math.min(a.length, b.length);
+        int i = 0;
+        while (i < n && a[i] == b[i]) i++;
+        return i;
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+        writeVarLong(out, bytes.length);
+        out.write(bytes);
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        int length = readCount(in);
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    private static int readCount(DataInputStream in) throws IOException {
+        long count = readVarLong(in);
+        if (count < 0 || count > in.available()) {
+            throw new IOException("Malformed catalog page");
+        }
+        return (int) count;
+    }
+
+    // Seven bits at a time, low bits first, the top bit set on every byte but the last
+    private static void writeVarLong(DataOutputStream out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) (value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    private static long readVarLong(DataInputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) return value;
+        }
+        throw new IOException("Malformed catalog page");
+    }
+
+    private static byte[] deflate(byte[] body) {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(body);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(body.length / 2);
+            byte[] buffer = new byte[16 * 1024];
+            while (!deflater.finished()) {
+                out.write(buffer, 0, deflater.deflate(buffer));
+            }
+            return out.toByteArray();
+        }
+        finally {
+            deflater.end();
+        }
+    }
+
+    private static void inflate(byte[] deflated, byte[] body) throws IOException {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(deflated);
+            int n = 0;
+            while (n < body.length) {
+                int read = inflater.inflate(body, n, body.length - n);
+                if (read == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) break;
+                n += read;
+            }
+            if (n != body.length) {
+                throw new IOException("Malformed catalog page");
+            }
+        }
+        catch (DataFormatException e) {
+            throw new IOException("Malformed catalog page: " + e.getMessage());
+        }
+        finally {
+            inflater.end();
+        }
+    }
+}
@@ -0,0 +1,219 @@
+package p2p;
+
+import network.Metrics;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * SHA-256 of every fixed-size chunk of a file, plus the Merkle root over them.
+ * A downloader checks each chunk against its leaf as soon as it arrives, so a bad
+ * chunk is fetched again on its own instead of failing the whole file at the end.
+ * Inner nodes hash 0x01 || left || right; an odd node is carried up unchanged.
+ */
+public class ChunkManifest {
+    public static final int HASH_LENGTH = 32;
+    // Chunks hashed one after another by one thread when building a manifest
+    private static final long SEGMENT_BYTES = 16L * 1024 * 1024;
+    // Most chunks a manifest from a peer may have, 1 TB in the default 256 KB chunks
+    public static final int MAX_CHUNKS = 1 << 22;
+    // Largest chunk a manifest from a peer may use; downloads buffer several of them per request
+    public static final int MAX_CHUNK_SIZE = 1024 * 1024;
+
+    private final long fileSize;
+    private final int chunkSize;
+    private final byte[][] leaves;
+    private final byte[] root;
+
+    private ChunkManifest(long fileSize, int chunkSize, byte[][] leaves, byte[] root) {
+        this.fileSize = fileSize;
+        this.chunkSize = chunkSize;
+        this.leaves = leaves;
+        this.root = root;
+    }
+
+    /**
+     * Hashes every chunk of file. Leaves don't depend on each other, so a large file is
+     * split into segments of {@link #SEGMENT_BYTES} hashed in parallel on the common pool.
+     */
+    public static ChunkManifest build(File file, int chunkSize) throws IOException, NoSuchAlgorithmException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long fileSize = channel.size();
+            int count = chunkCount(fileSize, chunkSize);
+            byte[][] leaves = new byte[count][];
+            int chunksPerSegment = (int) Math.max(1, SEGMENT_BYTES / chunkSize);
+
+            LeafTask task = new LeafTask(file, channel, fileSize, chunkSize, leaves, 0, count, chunksPerSegment);
+            ForkJoinPool.commonPool().invoke(task);
+            if (task.failure != null) throw task.failure;
+            return new ChunkManifest(fileSize, chunkSize, leaves, computeRoot(leaves));
+        }
+    }
+
+    // Leaves first to end, halved until a range is one segment; each segment reads on its own
+    private static class LeafTask extends RecursiveAction {
+        private final File file;
+        private final FileChannel channel;
+        private final long fileSize;
+        private final int chunkSize;
+        private final byte[][] leaves;
+        private final int first;
+        private final int end;
+        private final int chunksPerSegment;
+        private IOException failure;
+
+        LeafTask(File file, FileChannel channel, long fileSize, int chunkSize, byte[][] leaves,
+                 int first, int end, int chunksPerSegment) {
+            this.file = file;
+            this.channel = channel;
+            this.fileSize = fileSize;
+            this.chunkSize = chunkSize;
+            this.leaves = leaves;
+            this.first = first;
+            this.end = end;
+            this.chunksPerSegment = chunksPerSegment;
+        }
+
+        @Override
+        protected void compute() {
+            if (end - first > chunksPerSegment) {
+                int mid = first + (end - first) / 2;
+                LeafTask left = new LeafTask(file, channel, fileSize, chunkSize, leaves, first, mid, chunksPerSegment);
+                LeafTask right = new LeafTask(file, channel, fileSize, chunkSize, leaves, mid, end, chunksPerSegment);
+                invokeAll(left, right);
+                failure = (left.failure != null) ? left.failure : right.failure;
+                return;
+            }
+            try {
+                hashSegment();
+            }
+            catch (IOException e) {
+                failure = e;
+            }
+        }
+
+        private void hashSegment() throws IOException {
+            MessageDigest digest;
+            try {
+                digest = MessageDigest.getInstance("SHA-256");
+            }
+            catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+            ByteBuffer buf = ByteBuffer.allocateDirect(chunkSize);
+            for (int i = first; i < end; i++) {
+                long offset = (long) i * chunkSize;
+                int length = (int) Math.min(chunkSize, fileSize - offset);
+                buf.clear().limit(length);
+                while (buf.hasRemaining()) {
+                    if (channel.read(buf, offset + buf.position()) < 0) {
+                        throw new EOFException("File shrank while building manifest: " + file);
+                    }
+                }
+                buf.flip();
+                digest.update(buf);
+                leaves[i] = digest.digest();
+                Metrics.meter("hash.bytes").mark(length);
+            }
+        }
+    }
+
+    public static int chunkCount(long fileSize, int chunkSize) {
+        return (int) ((fileSize + chunkSize - 1) / chunkSize);
+    }
+
+    public long getFileSize()   { return fileSize; }
+    public int getChunkSize()   { return chunkSize; }
+    public int getChunkCount()  { return leaves.length; }
+    public byte[] getRoot()     { return root.clone(); }
+
+    public boolean verifyChunk(int index, byte[] data, int length) {
+        return verifyChunk(index, data, 0, length);
+    }
+
+    public boolean verifyChunk(int index, byte[] data, int from, int length) {
+        if (index < 0 || index >= leaves.length) return false;
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(data, from, length);
+            return MessageDigest.isEqual(digest.digest(), leaves[index]);
+        }
+        catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public void write(DataOutputStream out) throws IOException {
+        out.writeLong(fileSize);
+        out.writeInt(chunkSize);
+        out.writeInt(leaves.length);
+        out.write(root);
+        for (byte[] leaf : leaves) {
+            out.write(leaf);
+        }
+    }
+
+    // Rejects a manifest that does not fit the expected size or whose root does not match its leaves
+    public static ChunkManifest read(DataInputStream in, long expectedSize) throws IOException {
+        long fileSize = in.readLong();
+        int chunkSize = in.readInt();
+        int count = in.readInt();
+        // Checked before anything is allocated, the peer picks all three numbers
+        if (fileSize != expectedSize || fileSize < 0 || chunkSize <= 0 || chunkSize > MAX_CHUNK_SIZE
+                || count < 0 || count > MAX_CHUNKS
+                || count != (fileSize + chunkSize - 1) / chunkSize) {
+            throw new IOException("Malformed chunk manifest");
+        }
+
+        byte[] root = new byte[HASH_LENGTH];
+        in.readFully(root);
+        // Leaf by leaf, so memory only grows with what the peer actually sends
+        byte[][] leaves = new byte[count][];
+        for (int i = 0; i < count; i++) {
+            leaves[i] = new byte[HASH_LENGTH];
+            in.readFully(leaves[i]);
+        }
+
+        if (!Arrays.equals(root, computeRoot(leaves))) {
+            throw new IOException("Chunk manifest does not check out");
+        }
+        return new ChunkManifest(fileSize, chunkSize, leaves, root);
+    }
+
+    private static byte[] computeRoot(byte[][] leaves) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            if (leaves.length == 0) {
+                return digest.digest();
+            }
+
+            byte[][] level = leaves;
+            while (level.length > 1) {
+                byte[][] next = new byte[(level.length + 1) / 2][];
+                for (int i = 0; i < next.length; i++) {
+                    int left = 2 * i;
+                    if (left + 1 == level.length) {
+                        next[i] = level[left];
+                        continue;
+                    }
+                    digest.update((byte) 0x01);
+                    digest.update(level[left]);
+                    digest.update(level[left + 1]);
+                    next[i] = digest.digest();
+                }
+                level = next;
+            }
+            return level[0];
+        }
+        catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,395 @@
+package p2p;
+
+import java.util.*;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Decides which owner fetches which chunks of a download. Every owner's throughput is
+ * measured as requests complete; the fastest owner with a free slot gets the next
+ * request, owners far slower than the best are left out, and failing owners are backed
+ * off. The number of consecutive chunks per request follows the link: it doubles while
+ * requests finish quickly and halves when they drag. Once nothing is left to hand out,
+ * idle owners take over chunks still in flight elsewhere so a slow owner can't hold up
+ * the end of the file.
+ * <p>
+ * Owners may hold only part of the file. Among the chunks an owner has, the one held
+ * by the fewest owners goes first, ties broken at random, so downloaders starting at
+ * the same time spread over the file instead of all asking for chunk 0.
+ */
+public class ChunkScheduler {
+    public static final int MAX_RUN_CHUNKS = 8;
+
+    private static final long TARGET_REQUEST_NANOS = 500_000_000L;
+    private static final double EWMA_WEIGHT = 0.3;
+    // Owners this many times slower than the best one get no new work while the best can take it
+    private static final double SLOW_RATIO = 16.0;
+    private static final long MAX_BACKOFF_MS = 30_000;
+    // Give up when no owner has what is left and none of them gains a chunk for this long
+    private static final long STALL_MS = 30_000;
+
+    public static class Assignment {
+        public final String owner;
+        public final int firstChunk;
+        public final int chunkCount;
+        final long startNanos;
+        boolean duplicated;
+        // The per-peer permit this request holds, given back to the same semaphore even if
+        // the node has swapped in new ones for a new limit since
+        Semaphore slot;
+
+        Assignment(String owner, int firstChunk, int chunkCount) {
+            this.owner = owner;
+            this.firstChunk = firstChunk;
+            this.chunkCount = chunkCount;
+            this.startNanos = System.nanoTime();
+        }
+    }
+
+    private static class OwnerStats {
+        double bytesPerSecond = 0;
+        int runChunks = 1;
+        int inFlight = 0;
+        int failures = 0;
+        long backoffUntil = 0;
+    }
+
+    // A lock rather than a monitor, so workers waiting here don't pin virtual thread carriers
+    private final ReentrantLock lock;
+    private final Condition changed;
+
+    private final List<String> owners;
+    private final Map<String, OwnerStats> stats;
+    private final Map<String, Semaphore> peerSlots;
+    private final int maxPerPeer;
+
+    private final long fileSize;
+    private final long chunkSize;
+    private final int chunkCount;
+    private final BitSet pending;
+    private final BitSet done;
+    private final int[] attempts;
+    private final int maxAttempts;
+    private final List<Assignment> inFlight;
+    private boolean aborted;
+
+    // Chunks each owner has, no entry meaning the whole file, and how many owners have each chunk
+    private final Map<String, BitSet> available;
+    private final int[] availability;
+    private final Random random;
+    private long stalledSince;
+
+    public ChunkScheduler(List<String> owners, long fileSize, long chunkSize, BitSet alreadyDone,
+                          int maxPerPeer, Map<String, Semaphore> peerSlots, int maxAttempts) {
+        this.lock = new ReentrantLock();
+        this.changed = lock.newCondition();
+        this.owners = new ArrayList<>(owners);
+        this.stats = new HashMap<>();
+        for (String ip : owners) {
+            stats.put(ip, new OwnerStats());
+        }
+        this.peerSlots = peerSlots;
+        this.maxPerPeer = maxPerPeer;
+
+        this.fileSize = fileSize;
+        this.chunkSize = chunkSize;
+        this.chunkCount = (int) ((fileSize + chunkSize - 1) / chunkSize);
+        this.done = (BitSet) alreadyDone.clone();
+        this.pending = new BitSet(chunkCount);
+        pending.set(0, chunkCount);
+        pending.andNot(done);
+        this.attempts = new int[chunkCount];
+        this.maxAttempts = maxAttempts;
+        this.inFlight = new ArrayList<>();
+        this.aborted = false;
+
+        this.available = new HashMap<>();
+        this.availability = new int[chunkCount];
+        Arrays.fill(availability, this.owners.size());
+        this.random = new Random();
+        this.stalledSince = 0;
+    }
+
+    public long offsetOf(int chunk) {
+        return chunk * chunkSize;
+    }
+
+    public int lengthOf(int chunk) {
+        return (int) Math.min(chunkSize, fileSize - offsetOf(chunk));
+    }
+
+    // Blocks until there is work; null once the file is done or can't be finished
+    public Assignment next() throws InterruptedException {
+        lock.lock();
+        try {
+            while (true) {
+                if (aborted || done.cardinality() == chunkCount) return null;
+
+                Assignment a = tryAssign();
+                if (a != null) {
+                    stalledSince = 0;
+                    return a;
+                }
+                if (pending.isEmpty() && inFlight.isEmpty()) return null;
+                if (inFlight.isEmpty() && !anyPendingAvailable()) {
+                    long now = System.currentTimeMillis();
+                    if (stalledSince == 0) {
+                        stalledSince = now;
+                    }
+                    else if (now - stalledSince > STALL_MS) {
+                        System.err.println("No owner has the remaining chunks, giving up");
+                        aborted = true;
+                        return null;
+                    }
+                }
+
+                // Waiting on a completion, a backoff running out or a slot freed by another download
+                changed.await(50, TimeUnit.MILLISECONDS);
+            }
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    private Assignment tryAssign() {
+        long now = System.currentTimeMillis();
+        List<String> ranked = new ArrayList<>();
+        for (String ip : owners) {
+            if (stats.get(ip).backoffUntil <= now) {
+                ranked.add(ip);
+            }
+        }
+        // Unmeasured owners first so every owner gets probed, then fastest first
+        ranked.sort(Comparator.comparingDouble(ip -> {
+            double bps = stats.get(ip).bytesPerSecond;
+            return (bps == 0) ? Double.NEGATIVE_INFINITY : -bps;
+        }));
+
+        double best = 0;
+        for (String ip : ranked) {
+            best = Math.max(best, stats.get(ip).bytesPerSecond);
+        }
+
+        for (String ip : ranked) {
+            OwnerStats s = stats.get(ip);
+            if (s.inFlight >= maxPerPeer) continue;
+            if (s.bytesPerSecond > 0 && s.bytesPerSecond * SLOW_RATIO < best && bestHasRoom(ranked, best)) continue;
+
+            Semaphore slot = slotsFor(ip);
+            if (!slot.tryAcquire()) continue;
+            Assignment a = pending.isEmpty() ? takeOver(ip) : takePending(ip, s.runChunks);
+            if (a == null) {
+                slot.release();
+                continue;
+            }
+            a.slot = slot;
+            s.inFlight++;
+            inFlight.add(a);
+            return a;
+        }
+        return null;
+    }
+
+    private boolean bestHasRoom(List<String> ranked, double best) {
+        for (String ip : ranked) {
+            OwnerStats s = stats.get(ip);
+            if (s.bytesPerSecond == best && s.inFlight < maxPerPeer && hasPendingFor(ip)) return true;
+        }
+        return false;
+    }
+
+    // False if the owner has none of the pending chunks; once nothing is pending any owner may take over
+    private boolean hasPendingFor(String ip) {
+        BitSet have = available.get(ip);
+        return have == null || pending.isEmpty() || pending.intersects(have);
+    }
+
+    // Rarest pending chunk the owner has, extended by the pending chunks it has right after it
+    private Assignment takePending(String ip, int runChunks) {
+        // Scanning from a random point breaks ties differently on every downloader
+        int start = random.nextInt(chunkCount);
+        int first = rarest(ip, start, chunkCount, -1);
+        first = rarest(ip, 0, start, first);
+        if (first < 0) return null;
+
+        int count = 1;
+        while (count < runChunks && first + count < chunkCount
+                && pending.get(first + count) && has(ip, first + count)) {
+            count++;
+        }
+        pending.clear(first, first + count);
+        return new Assignment(ip, first, count);
+    }
+
+    private int rarest(String ip, int from, int to, int best) {
+        for (int c = pending.nextSetBit(from); c >= 0 && c < to; c = pending.nextSetBit(c + 1)) {
+            if (best >= 0 && availability[best] <= 1) break;
+            if (has(ip, c) && (best < 0 || availability[c] < availability[best])) {
+                best = c;
+            }
+        }
+        return best;
+    }
+
+    private boolean anyPendingAvailable() {
+        for (int c = pending.nextSetBit(0); c >= 0; c = pending.nextSetBit(c + 1)) {
+            if (availability[c] > 0) return true;
+        }
+        return false;
+    }
+
+    private boolean has(String ip, int chunk) {
+        BitSet have = available.get(ip);
+        return have == null || have.get(chunk);
+    }
+
+    private boolean hasAll(String ip, Assignment a) {
+        for (int c = a.firstChunk; c < a.firstChunk + a.chunkCount; c++) {
+            if (!has(ip, c)) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Records which chunks an owner has now. Owners are assumed to have the whole file
+     * until their first update.
+     */
+    public void updateAvailability(String ip, BitSet have) {
+        lock.lock();
+        try {
+            if (!stats.containsKey(ip)) return;
+            for (int c = 0; c < chunkCount; c++) {
+                boolean before = has(ip, c);
+                boolean after = have.get(c);
+                if (before != after) {
+                    availability[c] += after ? 1 : -1;
+                }
+            }
+            if (have.nextClearBit(0) >= chunkCount) {
+                available.remove(ip);
+            }
+            else {
+                available.put(ip, (BitSet) have.clone());
+            }
+            stalledSince = 0;
+            changed.signalAll();
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean hasWholeFile(String ip) {
+        lock.lock();
+        try {
+            return !available.containsKey(ip);
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    // End of the file: re-request the oldest run another owner is still working on
+    private Assignment takeOver(String ip) {
+        Assignment oldest = null;
+        for (Assignment a : inFlight) {
+            if (a.duplicated || a.owner.equals(ip) || !hasAll(ip, a)) continue;
+            if (oldest == null || a.startNanos < oldest.startNanos) oldest = a;
+        }
+        if (oldest == null) return null;
+        oldest.duplicated = true;
+        Assignment copy = new Assignment(ip, oldest.firstChunk, oldest.chunkCount);
+        copy.duplicated = true;
+        return copy;
+    }
+
+    private boolean heldElsewhere(int chunk, Assignment except) {
+        for (Assignment other : inFlight) {
+            if (other != except && chunk >= other.firstChunk && chunk < other.firstChunk + other.chunkCount) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // True only for the first verified copy of a chunk, so duplicates are not counted twice
+    public boolean markDone(int chunk) {
+        lock.lock();
+        try {
+            if (done.get(chunk)) return false;
+            done.set(chunk);
+            return true;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Reports the end of a request. {@code transferOK} is false if the request itself
+     * failed; {@code badChunks} lists chunks that arrived but did not verify.
+     */
+    public void completed(Assignment a, boolean transferOK, Set<Integer> badChunks) {
+        lock.lock();
+        try {
+            inFlight.remove(a);
+            a.slot.release();
+            OwnerStats s = stats.get(a.owner);
+            s.inFlight--;
+
+            long elapsed = Math.max(1, System.nanoTime() - a.startNanos);
+            if (transferOK && badChunks.isEmpty()) {
+                long bytes = 0;
+                for (int c = a.firstChunk; c < a.firstChunk + a.chunkCount; c++) {
+                    bytes += lengthOf(c);
+                }
+                double sample = bytes * 1e9 / elapsed;
+                s.bytesPerSecond = (s.bytesPerSecond == 0) ? sample
+                        : EWMA_WEIGHT * sample + (1 - EWMA_WEIGHT) * s.bytesPerSecond;
+                s.failures = 0;
+
+                if (elapsed < TARGET_REQUEST_NANOS && a.chunkCount >= s.runChunks) {
+                    s.runChunks = Math.min(MAX_RUN_CHUNKS, s.runChunks * 2);
+                }
+                else if (elapsed > 2 * TARGET_REQUEST_NANOS) {
+                    s.runChunks = Math.max(1, s.runChunks / 2);
+                }
+            }
+            else {
+                s.failures++;
+                s.runChunks = 1;
+                s.backoffUntil = System.currentTimeMillis() + Math.min(MAX_BACKOFF_MS, 500L << Math.min(s.failures, 6));
+            }
+
+            for (int c = a.firstChunk; c < a.firstChunk + a.chunkCount; c++) {
+                if (done.get(c) || heldElsewhere(c, a)) continue;
+                if (++attempts[c] >= maxAttempts) {
+                    System.err.println("Chunk " + c + " failed " + attempts[c] + " times, giving up");
+                    aborted = true;
+                }
+                pending.set(c);
+            }
+            changed.signalAll();
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean isComplete() {
+        lock.lock();
+        try {
+            return done.cardinality() == chunkCount;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    private Semaphore slotsFor(String ip) {
+        return peerSlots.computeIfAbsent(ip, k -> new Semaphore(maxPerPeer));
+    }
+}
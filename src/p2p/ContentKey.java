@@ -0,0 +1,86 @@
+package p2p;
+
+import java.util.HexFormat;
+
+/**
+ * A content ID in binary, for the maps that hold every file the known peers offer.
+ * A 32 byte digest, SHA-256 or named like {@code blake3:<hex>}, sits in four longs, so
+ * a key takes about half of what its hex string would and compares without parsing.
+ * IDs of any other shape are kept as they came.
+ */
+public final class ContentKey {
+    private final long d0, d1, d2, d3;
+    // Null for IDs kept as strings
+    private final String algorithm;
+    private final String raw;
+
+    private ContentKey(long d0, long d1, long d2, long d3, String algorithm, String raw) {
+        this.d0 = d0;
+        this.d1 = d1;
+        this.d2 = d2;
+        this.d3 = d3;
+        this.algorithm = algorithm;
+        this.raw = raw;
+    }
+
+    public static ContentKey of(String contentId) {
+        if (contentId.length() == 64 && isDigest(contentId, 0)) {
+            return fromHex(contentId, 0, HashService.SHA256);
+        }
+        // A named SHA-256 ID is another ID than the bare one, so it stays a string
+        int colon = contentId.indexOf(':');
+        if (colon > 0 && contentId.length() - colon - 1 == 64 && isDigest(contentId, colon + 1)
+                && !contentId.startsWith(HashService.SHA256 + ":")) {
+            return fromHex(contentId, colon + 1, contentId.substring(0, colon).intern());
+        }
+        return new ContentKey(0, 0, 0, 0, null, contentId);
+    }
+
+    public String algorithm() {
+        return (algorithm != null) ? algorithm : HashService.algorithmOf(raw);
+    }
+
+    @Override
+    public String toString() {
+        if (raw != null) return raw;
+        byte[] digest = new byte[32];
+        long[] words = { d0, d1, d2, d3 };
+        for (int i = 0; i < 32; i++) {
+            digest[i] = (byte) (words[i / 8] >>> (56 - 8 * (i % 8)));
+        }
+        return HashService.contentId(algorithm, digest);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof ContentKey)) return false;
+        ContentKey k = (ContentKey) o;
+        if (raw != null || k.raw != null) return raw != null && raw.equals(k.raw);
+        return d0 == k.d0 && d1 == k.d1 && d2 == k.d2 && d3 == k.d3 && algorithm.equals(k.algorithm);
+    }
+
+    // Digests are uniformly spread already
+    @Override
+    public int hashCode() {
+        return (raw != null) ? raw.hashCode() : (int) (d0 ^ (d0 >>> 32));
+    }
+
+    private static ContentKey fromHex(String s, int from, String algorithm) {
+        return new ContentKey(
+                HexFormat.fromHexDigitsToLong(s, from, from + 16),
+                HexFormat.fromHexDigitsToLong(s, from + 16, from + 32),
+                HexFormat.fromHexDigitsToLong(s, from + 32, from + 48),
+                HexFormat.fromHexDigitsToLong(s, from + 48, from + 64),
+                algorithm, null);
+    }
+
+    // 64 lowercase hex digits from index from, anything else wouldn't come back the same
+    private static boolean isDigest(String s, int from) {
+        for (int i = from; i < from + 64; i++) {
+            char c = s.charAt(i);
+            if (!((c >= '0' && c <= '9') || (c >= 'a' && c <= 'f'))) return false;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,238 @@
+package p2p;
+
+import network.FileClient;
+import network.Metrics;
+import network.Workers;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Downloads the chunks of one file from all of its owners at once.
+ * A fixed pool of workers keeps up to {@code maxInFlight} requests running, a
+ * {@link ChunkScheduler} decides which owner serves which chunks, and a semaphore
+ * per owner IP caps how many requests hit the same peer.
+ */
+public class DownloadEngine {
+    public static final int DEFAULT_CHUNK_SIZE = 256 * 1024;
+
+    // A chunk gets at least this many tries, spread over the owners where possible
+    private static final int MIN_ATTEMPTS = 3;
+    // How often owners missing part of the file are asked again what they have
+    private static final long PIECE_MAP_INTERVAL_MS = 2000;
+    // How long a stopped download waits for requests already on the wire
+    private static final long WORKER_STOP_MS = 5000;
+
+    // Chunk requests on the wire, over every download of the node
+    private static final AtomicInteger inFlight = new AtomicInteger();
+    static {
+        Metrics.gauge("chunk.requests.inflight", inFlight::get);
+    }
+
+    private final String fileHash;
+    private final long fileSize;
+    private final long chunkSize;
+    private final ChunkManifest manifest;
+    private final List<String> owners;
+    private final int port;
+
+    private final int maxInFlight;
+    private final int maxPerPeer;
+    private final Map<String, Semaphore> peerSlots;
+    // Owners that sent chunks not matching the manifest, and chunks that did match it
+    private final Set<String> failedVerification = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger verified = new AtomicInteger();
+
+    // Without a manifest chunks can only be checked as a whole file at the end
+    public DownloadEngine(String fileHash, long fileSize, ChunkManifest manifest, List<String> owners, int port,
+                          int maxInFlight, int maxPerPeer, Map<String, Semaphore> peerSlots) {
+        this.fileHash = fileHash;
+        this.fileSize = fileSize;
+        this.manifest = manifest;
+        this.chunkSize = (manifest != null) ? manifest.getChunkSize() : DEFAULT_CHUNK_SIZE;
+        // ChunkManifest.read() already refuses these, a manifest built here never has them
+        if (chunkSize <= 0 || chunkSize > ChunkManifest.MAX_CHUNK_SIZE) {
+            throw new IllegalArgumentException("Bad chunk size " + chunkSize);
+        }
+        this.owners = new ArrayList<>(owners);
+        this.port = port;
+        this.maxInFlight = Math.max(1, maxInFlight);
+        this.maxPerPeer = Math.max(1, maxPerPeer);
+        this.peerSlots = peerSlots;
+    }
+
+    /**
+     * True if chunks from several owners failed verification, or chunks failed and none
+     * matched at all; either is more likely a bad manifest than bad owners.
+     */
+    public boolean isManifestSuspect() {
+        return failedVerification.size() >= 2 || (!failedVerification.isEmpty() && verified.get() == 0);
+    }
+
+    public long getChunkCount() {
+        return (fileSize + chunkSize - 1) / chunkSize;
+    }
+
+    /**
+     * Fetches every chunk {@code state} does not have yet into {@code storage}.
+     * Returns true only if all chunks arrived; a failed or corrupt chunk is retried, on another owner where possible.
+     */
+    public boolean run(DownloadStorage storage, DownloadState state, Node.DownloadProgress progress) {
+        if (owners.isEmpty()) return false;
+        if (manifest != null) {
+            recheck(storage, state);
+        }
+
+        BitSet alreadyDone = new BitSet();
+        for (int i = 0; i < getChunkCount(); i++) {
+            if (state.isDone(i)) alreadyDone.set(i);
+        }
+        progress.downloadedBytes = state.getDoneBytes();
+
+        int maxAttempts = Math.max(2 * owners.size(), MIN_ATTEMPTS);
+        ChunkScheduler scheduler = new ChunkScheduler(owners, fileSize, chunkSize, alreadyDone,
+                maxPerPeer, peerSlots, maxAttempts);
+        refreshPieceMaps(scheduler, true);
+        ScheduledExecutorService poller = Executors.newSingleThreadScheduledExecutor(Workers.threadFactory("piece-maps"));
+        poller.scheduleWithFixedDelay(() -> refreshPieceMaps(scheduler, false),
+                PIECE_MAP_INTERVAL_MS, PIECE_MAP_INTERVAL_MS, TimeUnit.MILLISECONDS);
+
+        long remaining = getChunkCount() - alreadyDone.cardinality();
+        int workers = (int) Math.min(maxInFlight, Math.max(1, remaining));
+        // One worker per request slot; on virtual threads they cost next to nothing
+        ExecutorService pool = Workers.newTaskExecutor("download");
+
+        List<Future<?>> futures = new ArrayList<>();
+        for (int w = 0; w < workers; w++) {
+            futures.add(pool.submit(() -> {
+                byte[] buffer = new byte[Math.toIntExact(chunkSize * ChunkScheduler.MAX_RUN_CHUNKS)];
+                ChunkScheduler.Assignment a;
+                while ((a = scheduler.next()) != null) {
+                    fetchRun(scheduler, a, buffer, storage, state, progress);
+                }
+                return null;
+            }));
+        }
+
+        boolean failed = false;
+        try {
+            for (Future<?> f : futures) {
+                f.get();
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            failed = true;
+        }
+        catch (ExecutionException e) {
+            System.err.println("Download worker failed: " + e.getCause());
+            failed = true;
+        }
+        finally {
+            poller.shutdownNow();
+            pool.shutdownNow();
+            awaitWorkers(pool);
+            state.save();
+        }
+        return !failed && state.isComplete();
+    }
+
+    // Nothing may write to the storage or state once run() has returned, even when it was interrupted
+    private void awaitWorkers(ExecutorService pool) {
+        boolean interrupted = Thread.interrupted();
+        try {
+            if (!pool.awaitTermination(WORKER_STOP_MS, TimeUnit.MILLISECONDS)) {
+                System.err.println("Download workers of " + fileHash + " still busy");
+            }
+        }
+        catch (InterruptedException e) {
+            interrupted = true;
+        }
+        finally {
+            if (interrupted) Thread.currentThread().interrupt();
+        }
+    }
+
+    // One request for a run of consecutive chunks, each verified and written on its own
+    private void fetchRun(ChunkScheduler scheduler, ChunkScheduler.Assignment a, byte[] buffer,
+                          DownloadStorage storage, DownloadState state, Node.DownloadProgress progress)
+            throws IOException {
+        int last = a.firstChunk + a.chunkCount - 1;
+        long offset = scheduler.offsetOf(a.firstChunk);
+        long length = scheduler.offsetOf(last) + scheduler.lengthOf(last) - offset;
+
+        Set<Integer> bad = new HashSet<>();
+        boolean ok = false;
+        try {
+            long start = System.nanoTime();
+            inFlight.incrementAndGet();
+            try {
+                ok = FileClient.downloadChunk(a.owner, port, fileHash, offset, length, buffer);
+            }
+            finally {
+                inFlight.decrementAndGet();
+            }
+            if (!ok) {
+                Metrics.meter("chunk.failed", a.owner).mark(1);
+                return;
+            }
+            // Per request, which is a run of up to MAX_RUN_CHUNKS chunks
+            long micros = (System.nanoTime() - start) / 1000;
+            Metrics.histogram("chunk.latency.us").record(micros);
+            Metrics.histogram("chunk.latency.us", a.owner).record(micros);
+
+            for (int c = a.firstChunk; c <= last; c++) {
+                int at = (int) (scheduler.offsetOf(c) - offset);
+                int csize = scheduler.lengthOf(c);
+                if (manifest != null && !manifest.verifyChunk(c, buffer, at, csize)) {
+                    System.err.println("Chunk " + c + " of " + fileHash + " from " + a.owner + " failed verification");
+                    Metrics.meter("chunk.corrupt", a.owner).mark(1);
+                    failedVerification.add(a.owner);
+                    bad.add(c);
+                    continue;
+                }
+                if (manifest != null) verified.incrementAndGet();
+                storage.write(scheduler.offsetOf(c), buffer, at, csize);
+                if (scheduler.markDone(c)) {
+                    state.markDone(c);
+                    progress.addDownloaded(csize);
+                }
+            }
+            state.saveIfDue();
+        }
+        finally {
+            scheduler.completed(a, ok, bad);
+        }
+    }
+
+    // Owners holding the whole file have nothing new to tell after the first round
+    private void refreshPieceMaps(ChunkScheduler scheduler, boolean everyOwner) {
+        for (String ip : owners) {
+            if (!everyOwner && scheduler.hasWholeFile(ip)) continue;
+            BitSet have = FileClient.requestPieceMap(ip, port, fileHash, (int) chunkSize);
+            if (have != null) {
+                scheduler.updateAvailability(ip, have);
+            }
+        }
+    }
+
+    // Chunks written before a crash may not have reached the disk, so check them again
+    private void recheck(DownloadStorage storage, DownloadState state) {
+        byte[] buffer = new byte[(int) chunkSize];
+        for (int i = 0; i < getChunkCount(); i++) {
+            if (!state.isDone(i)) continue;
+            long offset = i * chunkSize;
+            int csize = (int) Math.min(chunkSize, fileSize - offset);
+            try {
+                storage.read(offset, buffer, csize);
+                if (manifest.verifyChunk(i, buffer, csize)) continue;
+            }
+            catch (IOException e) {
+                System.err.println(e.getMessage());
+            }
+            state.clear(i);
+        }
+    }
+}
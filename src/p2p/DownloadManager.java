@@ -0,0 +1,353 @@
+package p2p;
+
+import network.Workers;
+
+import java.util.*;
+
+/**
+ * Queue of file downloads. Jobs wait in order of priority, then of their place in the
+ * queue, and up to {@code maxParallel} of them run at once on threads of their own.
+ * One more slot is kept for small files, so they don't wait behind a huge one taking
+ * every regular slot. Jobs can be paused, cancelled and moved around the queue.
+ */
+public class DownloadManager {
+    public enum Priority { HIGH, NORMAL, LOW }
+
+    public enum Status { QUEUED, RUNNING, PAUSED, DONE, FAILED, CANCELLED }
+
+    // What actually moves the bytes, the node in practice
+    public interface Downloader {
+        // True once the file is complete and verified; an interrupt stops it early
+        boolean download(String fileHash, String fileName);
+
+        // Throws away whatever an unfinished download left on disk
+        void discard(String fileHash, String fileName);
+    }
+
+    public static final long SMALL_FILE_BYTES = 16L * 1024 * 1024;
+    private static final int EXPRESS_SLOTS = 1;
+
+    public static class Job {
+        public final String fileHash;
+        public final String fileName;
+        // 0 if not known, such a job counts as large
+        public final long fileSize;
+
+        private Priority priority;
+        private Status status;
+        private long position;
+        // The download or discard still working on the job's files, no new run starts before it ends
+        private Thread thread;
+        private boolean express;
+        // Cancelled while its thread was busy, which then discards the files once it's done
+        private boolean discardOnExit;
+
+        private Job(String fileHash, String fileName, long fileSize, Priority priority, long position) {
+            this.fileHash = fileHash;
+            this.fileName = fileName;
+            this.fileSize = fileSize;
+            this.priority = priority;
+            this.status = Status.QUEUED;
+            this.position = position;
+        }
+
+        public boolean isSmall() {
+            return fileSize > 0 && fileSize <= SMALL_FILE_BYTES;
+        }
+    }
+
+    // Read-only copy of a job for display
+    public static class JobInfo {
+        public final String fileHash;
+        public final String fileName;
+        public final long fileSize;
+        public final Priority priority;
+        public final Status status;
+
+        private JobInfo(Job job) {
+            this.fileHash = job.fileHash;
+            this.fileName = job.fileName;
+            this.fileSize = job.fileSize;
+            this.priority = job.priority;
+            this.status = job.status;
+        }
+    }
+
+    private static final Comparator<Job> QUEUE_ORDER =
+            Comparator.comparing((Job j) -> j.priority).thenComparingLong(j -> j.position);
+
+    private final Downloader downloader;
+    private final Workers workers;
+    // Every job by file hash, finished ones too so they aren't queued again on their own
+    private final Map<String, Job> jobs;
+    private int maxParallel;
+    private int regularRunning;
+    private int expressRunning;
+    private long nextPosition;
+    private boolean accepting;
+
+    public DownloadManager(Downloader downloader, Workers workers, int maxParallel) {
+        this.downloader = downloader;
+        this.workers = workers;
+        this.jobs = new LinkedHashMap<>();
+        this.maxParallel = Math.max(1, maxParallel);
+        this.accepting = true;
+    }
+
+    /**
+     * Queues a file the user asked for. A paused, failed or cancelled job of the same
+     * file is queued again; one already queued, running or done is left alone.
+     */
+    public synchronized void submit(String fileHash, String fileName, long fileSize, Priority priority) {
+        Job job = jobs.get(fileHash);
+        if (job == null) {
+            jobs.put(fileHash, new Job(fileHash, fileName, fileSize, priority, nextPosition++));
+        }
+        else if (job.status == Status.PAUSED || job.status == Status.FAILED || job.status == Status.CANCELLED) {
+            job.priority = priority;
+            requeue(job);
+        }
+        dispatch();
+    }
+
+    /**
+     * Queues a file found by a background loop. Only failed jobs are tried again, what
+     * the user paused or cancelled stays that way.
+     */
+    public synchronized void offer(String fileHash, String fileName, long fileSize) {
+        Job job = jobs.get(fileHash);
+        if (job == null) {
+            jobs.put(fileHash, new Job(fileHash, fileName, fileSize, Priority.NORMAL, nextPosition++));
+        }
+        else if (job.status == Status.FAILED) {
+            requeue(job);
+        }
+        dispatch();
+    }
+
+    // A running job keeps its .part and state files and resumes from them later
+    public synchronized void pause(String fileHash) {
+        Job job = jobs.get(fileHash);
+        if (job == null) return;
+        if (job.status == Status.QUEUED) {
+            job.status = Status.PAUSED;
+        }
+        else if (job.status == Status.RUNNING) {
+            job.status = Status.PAUSED;
+            job.thread.interrupt();
+        }
+    }
+
+    public synchronized void resume(String fileHash) {
+        Job job = jobs.get(fileHash);
+        if (job == null || job.status != Status.PAUSED) return;
+        requeue(job);
+        dispatch();
+    }
+
+    // Drops the job and whatever it downloaded so far
+    public synchronized void cancel(String fileHash) {
+        Job job = jobs.get(fileHash);
+        if (job == null) return;
+        if (job.status == Status.RUNNING) {
+            job.status = Status.CANCELLED;
+            job.discardOnExit = true;
+            job.thread.interrupt();
+        }
+        else if (job.status == Status.QUEUED || job.status == Status.PAUSED || job.status == Status.FAILED) {
+            job.status = Status.CANCELLED;
+            // A paused download may still be winding down
+            if (job.thread != null) job.discardOnExit = true;
+            else startDiscard(job);
+        }
+    }
+
+    public synchronized void setPriority(String fileHash, Priority priority) {
+        Job job = jobs.get(fileHash);
+        if (job == null) return;
+        job.priority = priority;
+        dispatch();
+    }
+
+    // Swaps places with the next waiting job ahead of it of the same priority
+    public synchronized void moveUp(String fileHash) {
+        swapWithNeighbour(fileHash, -1);
+    }
+
+    public synchronized void moveDown(String fileHash) {
+        swapWithNeighbour(fileHash, 1);
+    }
+
+    // Ahead of every job of its priority
+    public synchronized void moveToFront(String fileHash) {
+        Job job = jobs.get(fileHash);
+        if (job == null) return;
+        long first = job.position;
+        for (Job other : jobs.values()) {
+            first = Math.min(first, other.position);
+        }
+        job.position = first - 1;
+        dispatch();
+    }
+
+    // Forgets finished and cancelled jobs, once nothing works on their files any more
+    public synchronized void clearFinished() {
+        jobs.values().removeIf(j -> j.thread == null && (j.status == Status.DONE || j.status == Status.CANCELLED));
+    }
+
+    public synchronized Status getStatus(String fileHash) {
+        Job job = jobs.get(fileHash);
+        return (job != null) ? job.status : null;
+    }
+
+    // Running jobs first, then the queue in the order it will run, then the rest
+    public synchronized List<JobInfo> listJobs() {
+        List<Job> sorted = new ArrayList<>(jobs.values());
+        sorted.sort(Comparator.comparingInt((Job j) -> displayRank(j.status)).thenComparing(QUEUE_ORDER));
+        List<JobInfo> infos = new ArrayList<>();
+        for (Job job : sorted) {
+            infos.add(new JobInfo(job));
+        }
+        return infos;
+    }
+
+    public synchronized void setMaxParallel(int n) {
+        maxParallel = Math.max(1, n);
+        dispatch();
+    }
+
+    public synchronized int getMaxParallel() {
+        return maxParallel;
+    }
+
+    // Starts queued jobs again after stop()
+    public synchronized void start() {
+        accepting = true;
+        dispatch();
+    }
+
+    /**
+     * No new jobs start until start(). Running ones go back to the queue when their
+     * threads are interrupted, which is up to the caller.
+     */
+    public synchronized void stop() {
+        accepting = false;
+    }
+
+    private void requeue(Job job) {
+        job.status = Status.QUEUED;
+        job.position = nextPosition++;
+    }
+
+    private void swapWithNeighbour(String fileHash, int direction) {
+        Job job = jobs.get(fileHash);
+        if (job == null || job.status != Status.QUEUED) return;
+
+        List<Job> queue = queuedInOrder();
+        int i = queue.indexOf(job);
+        int j = i + direction;
+        if (j < 0 || j >= queue.size()) return;
+        Job other = queue.get(j);
+        if (other.priority != job.priority) return;
+
+        long position = job.position;
+        job.position = other.position;
+        other.position = position;
+        dispatch();
+    }
+
+    private List<Job> queuedInOrder() {
+        List<Job> queue = new ArrayList<>();
+        for (Job job : jobs.values()) {
+            if (job.status == Status.QUEUED) queue.add(job);
+        }
+        queue.sort(QUEUE_ORDER);
+        return queue;
+    }
+
+    // Fills the free slots from the head of the queue, small files also from the express slot
+    private void dispatch() {
+        if (!accepting) return;
+        for (Job job : queuedInOrder()) {
+            // Paused or cancelled and queued again before its last run ended
+            if (job.thread != null) continue;
+            if (regularRunning < maxParallel) {
+                regularRunning++;
+                launch(job, false);
+            }
+            else if (expressRunning < EXPRESS_SLOTS && job.isSmall()) {
+                expressRunning++;
+                launch(job, true);
+            }
+            else if (expressRunning >= EXPRESS_SLOTS) {
+                break;
+            }
+        }
+    }
+
+    private void launch(Job job, boolean express) {
+        job.status = Status.RUNNING;
+        job.express = express;
+        job.thread = workers.start("download-job", () -> runJob(job));
+    }
+
+    private void runJob(Job job) {
+        boolean ok = false;
+        try {
+            ok = downloader.download(job.fileHash, job.fileName);
+        }
+        catch (RuntimeException e) {
+            System.err.println("Download of " + job.fileName + " failed: " + e.getMessage());
+        }
+
+        boolean interrupted = Thread.interrupted();
+        synchronized (this) {
+            if (job.express) expressRunning--;
+            else regularRunning--;
+
+            if (ok) {
+                job.status = Status.DONE;
+                job.discardOnExit = false;
+            }
+            else if (job.status == Status.RUNNING) {
+                // Interrupted by stop(), it runs again once the manager is started
+                job.status = (interrupted && !accepting) ? Status.QUEUED : Status.FAILED;
+            }
+            release(job);
+        }
+    }
+
+    private void startDiscard(Job job) {
+        job.discardOnExit = false;
+        job.thread = workers.start("discard", () -> {
+            try {
+                downloader.discard(job.fileHash, job.fileName);
+            }
+            finally {
+                synchronized (this) {
+                    release(job);
+                }
+            }
+        });
+    }
+
+    // Called by the job's thread as it ends; the job may run again after this unless it was cancelled meanwhile
+    private void release(Job job) {
+        if (job.discardOnExit) {
+            startDiscard(job);
+        }
+        else if (job.thread == Thread.currentThread()) {
+            job.thread = null;
+        }
+        dispatch();
+    }
+
+    private static int displayRank(Status status) {
+        switch (status) {
+        case RUNNING: return 0;
+        case QUEUED:  return 1;
+        case PAUSED:  return 2;
+        default:      return 3;
+        }
+    }
+}
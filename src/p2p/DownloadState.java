@@ -0,0 +1,183 @@
+package p2p;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * On-disk record of an unfinished download, kept as {@code <hash>.p2pstate} next to
+ * the {@code <hash>.part} file: hash, size, chunk size and a bitmap of the chunks already
+ * verified and written. A restarted or interrupted download only fetches the rest.
+ */
+public class DownloadState {
+    public static final String SUFFIX = ".p2pstate";
+
+    private static final int FORMAT_VERSION = 1;
+    private static final long SAVE_INTERVAL_MS = 1000;
+
+    private final File stateFile;
+    private final String fileHash;
+    private final String fileName;
+    private final long fileSize;
+    private final int chunkSize;
+    private final int chunkCount;
+    private final BitSet done;
+
+    private long lastSave;
+
+    private DownloadState(File stateFile, String fileHash, String fileName,
+                          long fileSize, int chunkSize, BitSet done) {
+        this.stateFile = stateFile;
+        this.fileHash = fileHash;
+        this.fileName = fileName;
+        this.fileSize = fileSize;
+        this.chunkSize = chunkSize;
+        this.chunkCount = ChunkManifest.chunkCount(fileSize, chunkSize);
+        this.done = done;
+        this.lastSave = 0;
+    }
+
+    // Picks up a matching earlier state, anything else starts from scratch
+    public static DownloadState open(File downloadFolder, String fileName, String fileHash,
+                                     long fileSize, int chunkSize) {
+        File stateFile = stateFile(downloadFolder, fileHash);
+        DownloadState saved = load(stateFile);
+        if (saved != null && saved.fileHash.equals(fileHash)
+                && saved.fileSize == fileSize && saved.chunkSize == chunkSize) {
+            return saved;
+        }
+        return new DownloadState(stateFile, fileHash, fileName, fileSize, chunkSize, new BitSet());
+    }
+
+    // By hash like the .part file, two files of the same name each keep their own
+    public static File stateFile(File downloadFolder, String fileHash) {
+        return new File(downloadFolder, DownloadStorage.baseName(fileHash) + SUFFIX);
+    }
+
+    public static List<DownloadState> findAll(File downloadFolder) {
+        List<DownloadState> states = new ArrayList<>();
+        if (downloadFolder == null) return states;
+        File[] files = downloadFolder.listFiles((dir, name) -> name.endsWith(SUFFIX));
+        if (files == null) return states;
+        for (File f : files) {
+            DownloadState state = load(f);
+            if (state != null) {
+                states.add(state);
+            }
+        }
+        return states;
+    }
+
+    private static DownloadState load(File stateFile) {
+        if (!stateFile.isFile()) return null;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(stateFile)))) {
+            if (in.readInt() != FORMAT_VERSION) return null;
+            String fileHash = in.readUTF();
+            String fileName = in.readUTF();
+            long fileSize = in.readLong();
+            int chunkSize = in.readInt();
+            // A damaged file must not make us allocate whatever its numbers say
+            if (fileSize < 0 || chunkSize <= 0 || fileSize / chunkSize >= Integer.MAX_VALUE) {
+                throw new IOException("Bad file or chunk size");
+            }
+            int chunkCount = ChunkManifest.chunkCount(fileSize, chunkSize);
+            int wordCount = in.readInt();
+            if (wordCount < 0 || wordCount > (chunkCount + 63) / 64) {
+                throw new IOException("Bad chunk bitmap length " + wordCount);
+            }
+            long[] words = new long[wordCount];
+            for (int i = 0; i < words.length; i++) {
+                words[i] = in.readLong();
+            }
+            BitSet done = BitSet.valueOf(words);
+            if (done.length() > chunkCount) {
+                throw new IOException("Chunk bitmap marks chunks past the end of the file");
+            }
+            return new DownloadState(stateFile, fileHash, fileName, fileSize, chunkSize, done);
+        }
+        catch (IOException e) {
+            System.err.println("Ignoring download state " + stateFile + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    public String getFileHash()     { return fileHash; }
+    public String getFileName()     { return fileName; }
+    public long getFileSize()       { return fileSize; }
+    public int getChunkSize()       { return chunkSize; }
+    public int getChunkCount()      { return chunkCount; }
+
+    public synchronized boolean isDone(int index) {
+        return done.get(index);
+    }
+
+    public synchronized BitSet getDoneChunks() {
+        return (BitSet) done.clone();
+    }
+
+    public synchronized void markDone(int index) {
+        done.set(index);
+    }
+
+    public synchronized void clear(int index) {
+        done.clear(index);
+    }
+
+    public synchronized void reset() {
+        done.clear();
+    }
+
+    public synchronized boolean isComplete() {
+        return done.cardinality() == chunkCount;
+    }
+
+    public synchronized long getDoneBytes() {
+        long bytes = (long) done.cardinality() * chunkSize;
+        // The last chunk is usually short
+        if (chunkCount > 0 && done.get(chunkCount - 1)) {
+            bytes -= (long) chunkCount * chunkSize - fileSize;
+        }
+        return bytes;
+    }
+
+    // Cheap enough to call per chunk, it only writes about once a second
+    public synchronized void saveIfDue() {
+        if (System.currentTimeMillis() - lastSave >= SAVE_INTERVAL_MS) {
+            save();
+        }
+    }
+
+    public synchronized void save() {
+        lastSave = System.currentTimeMillis();
+        File tmp = new File(stateFile.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            out.writeInt(FORMAT_VERSION);
+            out.writeUTF(fileHash);
+            out.writeUTF(fileName);
+            out.writeLong(fileSize);
+            out.writeInt(chunkSize);
+            long[] words = done.toLongArray();
+            out.writeInt(words.length);
+            for (long w : words) {
+                out.writeLong(w);
+            }
+        }
+        catch (IOException e) {
+            System.err.println("Could not save download state: " + e.getMessage());
+            return;
+        }
+        try {
+            Files.move(tmp.toPath(), stateFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        catch (IOException e) {
+            System.err.println("Could not save download state: " + e.getMessage());
+        }
+    }
+
+    public synchronized void delete() {
+        stateFile.delete();
+    }
+}
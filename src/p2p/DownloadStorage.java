@@ -0,0 +1,97 @@
+package p2p;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Target file of a download. It is sized up front as {@code <hash>.part} (sparse on
+ * filesystems that support it) and every chunk is written straight to its offset,
+ * so chunks can land in any order and nothing has to be copied afterwards. Only the
+ * finished file gets its real name, so two files of the same name can download at once.
+ */
+public class DownloadStorage implements AutoCloseable {
+    private final File partFile;
+    private final File finalFile;
+    private final RandomAccessFile raf;
+    private final FileChannel channel;
+    private final boolean fresh;
+
+    public DownloadStorage(File downloadFolder, String fileHash, String fileName, long fileSize) throws IOException {
+        this.finalFile = new File(downloadFolder, fileName);
+        this.partFile = partFile(downloadFolder, fileHash);
+        this.fresh = !partFile.exists();
+        this.raf = new RandomAccessFile(partFile, "rw");
+        if (raf.length() != fileSize) {
+            raf.setLength(fileSize);
+        }
+        this.channel = raf.getChannel();
+    }
+
+    public static File partFile(File downloadFolder, String fileHash) {
+        return new File(downloadFolder, baseName(fileHash) + ".part");
+    }
+
+    // The content ID as a file name; named IDs like blake3:<hex> have a colon in them
+    static String baseName(String fileHash) {
+        return fileHash.replaceAll("[^A-Za-z0-9._-]", "_");
+    }
+
+    public void write(long offset, byte[] data, int length) throws IOException {
+        write(offset, data, 0, length);
+    }
+
+    public void write(long offset, byte[] data, int from, int length) throws IOException {
+        ByteBuffer buf = ByteBuffer.wrap(data, from, length);
+        long position = offset;
+        while (buf.hasRemaining()) {
+            position += channel.write(buf, position);
+        }
+    }
+
+    public void read(long offset, byte[] data, int length) throws IOException {
+        ByteBuffer buf = ByteBuffer.wrap(data, 0, length);
+        long position = offset;
+        while (buf.hasRemaining()) {
+            int n = channel.read(buf, position);
+            if (n < 0) throw new EOFException("Short read in " + partFile);
+            position += n;
+        }
+    }
+
+    // Chunks already written can be served to other peers straight from here
+    public FileChannel getChannel() { return channel; }
+
+    // True if no earlier .part file was there to resume from
+    public boolean isFresh() { return fresh; }
+
+    public File getPartFile() { return partFile; }
+    public File getFinalFile() { return finalFile; }
+
+    // Moves the finished .part file to its real name
+    public File complete() throws IOException {
+        close();
+        Files.move(partFile.toPath(), finalFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        return finalFile;
+    }
+
+    public void discard() {
+        close();
+        partFile.delete();
+    }
+
+    @Override
+    public void close() {
+        try {
+            raf.close();
+        }
+        catch (IOException e) {
+            System.err.println(e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,160 @@
+package p2p;
+
+import java.io.File;
+import java.util.*;
+import java.util.regex.Pattern;
+
+/**
+ * Excluded folders and file name masks, compiled once and then shared by every check,
+ * which local scans and catalog filtering run for each of possibly many thousand files.
+ * Immutable; changing the exclusions means compiling a new matcher.
+ * <p>
+ * Masks are case-insensitive globs where {@code *} stands for any run of characters and
+ * {@code ?} for one. Plain names, {@code prefix*} and {@code *suffix} masks, by far the
+ * most common, are looked up in a hash set and two character tries, so a check costs the
+ * length of the name however many masks there are. Anything else goes into a single
+ * combined pattern. Folders sit in a trie of path components, a folder is excluded if
+ * it or any folder above it is.
+ */
+public class ExclusionMatcher {
+    public static final ExclusionMatcher NONE = new ExclusionMatcher(Set.of(), Set.of());
+
+    private static class CharTrie {
+        private final Map<Character, CharTrie> next = new HashMap<>();
+        private boolean terminal;
+
+        void add(CharSequence s, boolean reversed) {
+            CharTrie node = this;
+            for (int i = 0; i < s.length(); i++) {
+                char c = s.charAt(reversed ? s.length() - 1 - i : i);
+                node = node.next.computeIfAbsent(c, k -> new CharTrie());
+            }
+            node.terminal = true;
+        }
+
+        // True if some entry is a prefix of s, or a suffix when reversed
+        boolean matchesStart(String s, boolean reversed) {
+            CharTrie node = this;
+            for (int i = 0; !node.terminal; i++) {
+                if (i == s.length()) return false;
+                node = node.next.get(s.charAt(reversed ? s.length() - 1 - i : i));
+                if (node == null) return false;
+            }
+            return true;
+        }
+    }
+
+    private static class PathTrie {
+        private final Map<String, PathTrie> children = new HashMap<>();
+        private boolean excluded;
+    }
+
+    private final Set<String> names = new HashSet<>();
+    private final CharTrie prefixes = new CharTrie();
+    private final CharTrie suffixes = new CharTrie();
+    private final Pattern others;
+    private final PathTrie folders = new PathTrie();
+    private final boolean empty;
+
+    public ExclusionMatcher(Collection<File> excludedFolders, Collection<String> masks) {
+        StringBuilder combined = new StringBuilder();
+        for (String mask : masks) {
+            String lower = mask.toLowerCase();
+            int stars = countOf(lower, '*');
+            boolean question = lower.indexOf('?') >= 0;
+            if (stars == 0 && !question) {
+                names.add(lower);
+            }
+            else if (stars == 1 && !question && lower.endsWith("*")) {
+                prefixes.add(lower.substring(0, lower.length() - 1), false);
+            }
+            else if (stars == 1 && !question && lower.startsWith("*")) {
+                suffixes.add(lower.substring(1), true);
+            }
+            else {
+                if (combined.length() > 0) combined.append('|');
+                combined.append(globToRegex(lower));
+            }
+        }
+        others = (combined.length() > 0) ? Pattern.compile(combined.toString(), Pattern.DOTALL) : null;
+
+        for (File folder : excludedFolders) {
+            String path = folder.getAbsolutePath();
+            PathTrie node = folders;
+            for (int start = 0; start <= path.length(); ) {
+                int end = nextSeparator(path, start);
+                node = node.children.computeIfAbsent(path.substring(start, end), k -> new PathTrie());
+                start = end + 1;
+            }
+            node.excluded = true;
+        }
+        empty = masks.isEmpty() && excludedFolders.isEmpty();
+    }
+
+    // True if the name matches any mask
+    public boolean isNameExcluded(String fileName) {
+        if (empty) return false;
+        String lower = fileName.toLowerCase();
+        return names.contains(lower)
+                || prefixes.matchesStart(lower, false)
+                || suffixes.matchesStart(lower, true)
+                || (others != null && others.matcher(lower).matches());
+    }
+
+    public boolean isFolderExcluded(File folder) {
+        if (folders.children.isEmpty()) return false;
+        String path = folder.getAbsolutePath();
+        return isUnderExcluded(path, path.length());
+    }
+
+    // A local file, by its folder and its name
+    public boolean isFileExcluded(File file) {
+        if (empty) return false;
+        String path = file.getAbsolutePath();
+        int nameStart = path.lastIndexOf(File.separatorChar);
+        if (!folders.children.isEmpty() && nameStart > 0 && isUnderExcluded(path, nameStart)) return true;
+        return isNameExcluded(file.getName());
+    }
+
+    // Walks the folders of path[0, end) one component at a time, the leading separator
+    // gives an empty first component on Unix which is fine as a key
+    private boolean isUnderExcluded(String path, int end) {
+        PathTrie node = folders;
+        for (int start = 0; start <= end; ) {
+            int stop = Math.min(nextSeparator(path, start), end);
+            node = node.children.get(path.substring(start, stop));
+            if (node == null) return false;
+            if (node.excluded) return true;
+            start = stop + 1;
+        }
+        return false;
+    }
+
+    private static int nextSeparator(String path, int from) {
+        int i = path.indexOf(File.separatorChar, from);
+        return (i < 0) ? path.length() : i;
+    }
+
+    private static int countOf(String s, char c) {
+        int n = 0;
+        for (int i = 0; i < s.length(); i++) {
+            if (s.charAt(i) == c) n++;
+        }
+        return n;
+    }
+
+    private static String globToRegex(String glob) {
+        StringBuilder regex = new StringBuilder("(?:");
+        int literal = 0;
+        for (int i = 0; i < glob.length(); i++) {
+            char c = glob.charAt(i);
+            if (c == '*' || c == '?') {
+                if (literal < i) regex.append(Pattern.quote(glob.substring(literal, i)));
+                regex.append(c == '*' ? ".*" : ".");
+                literal = i + 1;
+            }
+        }
+        if (literal < glob.length()) regex.append(Pattern.quote(glob.substring(literal)));
+        return regex.append(')').toString();
+    }
+}
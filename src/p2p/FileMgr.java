@@ -1,30 +1,212 @@
 package p2p;
 
 import java.io.File;
+import java.io.IOException;
+import java.security.NoSuchAlgorithmException;
 import java.util.*;
+import java.util.concurrent.*;
 
 public class FileMgr {
-    private final Map<String, FileMetaData> sharedFiles;
+    // Readers go lock free, writers hold the FileMgr lock and keep both maps in step
+    private volatile Map<String, FileMetaData> sharedFiles;
+    private volatile Map<String, FileMetaData> filesByPath;
+    private final HashIndex hashIndex;
 
-    public FileMgr() {
-        this.sharedFiles = new HashMap<>();
+    // Built on first request, most recently used ones are kept
+    private static final int MAX_MANIFESTS = 256;
+    private final Map<String, ChunkManifest> manifests;
+
+    // Files hashed at once during a scan, one per core unless set otherwise
+    private volatile int hashThreads = Runtime.getRuntime().availableProcessors();
+    private ExecutorService hashPool;
+
+    // Told after every change to the shared files
+    private volatile Runnable changeListener = () -> {};
+
+    public FileMgr(HashIndex hashIndex) {
+        this.sharedFiles = new ConcurrentHashMap<>();
+        this.filesByPath = new ConcurrentHashMap<>();
+        this.hashIndex = hashIndex;
+        this.manifests = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, ChunkManifest> eldest) {
+                return size() > MAX_MANIFESTS;
+            }
+        };
+    }
+
+    public void setChangeListener(Runnable listener) {
+        this.changeListener = listener;
     }
 
     public void addSharedFile(File file) {
-        try {
-            if (!file.exists() || file.isDirectory())
+        updateFile(file);
+    }
+
+    // Adds a new file or rehashes a modified one
+    public synchronized void updateFile(File file) {
+        FileMetaData meta = describe(file);
+        if (meta == null) {
+            removeFile(file);
+            return;
+        }
+        FileMetaData old = filesByPath.put(file.getAbsolutePath(), meta);
+        if (old != null) {
+            unlinkHash(old);
+        }
+        sharedFiles.putIfAbsent(meta.getFileHash(), meta);
+        changeListener.run();
+    }
+
+    // Removes a file, or every file below it if it was a folder
+    public synchronized void removeFile(File file) {
+        String path = file.getAbsolutePath();
+        String prefix = path + File.separator;
+
+        List<FileMetaData> removed = new ArrayList<>();
+        FileMetaData exact = filesByPath.remove(path);
+        if (exact != null) {
+            removed.add(exact);
+        }
+        else {
+            Iterator<Map.Entry<String, FileMetaData>> iter = filesByPath.entrySet().iterator();
+            while (iter.hasNext()) {
+                Map.Entry<String, FileMetaData> e = iter.next();
+                if (e.getKey().startsWith(prefix)) {
+                    removed.add(e.getValue());
+                    iter.remove();
+                }
+            }
+        }
+        for (FileMetaData meta : removed) {
+            unlinkHash(meta);
+            hashIndex.remove(meta.getFile());
+        }
+        if (!removed.isEmpty()) changeListener.run();
+    }
+
+    // Another copy of the same content may still be around to take over the hash
+    private void unlinkHash(FileMetaData meta) {
+        if (!sharedFiles.remove(meta.getFileHash(), meta)) return;
+        for (FileMetaData other : filesByPath.values()) {
+            if (other.getFileHash().equals(meta.getFileHash())) {
+                sharedFiles.put(other.getFileHash(), other);
                 return;
+            }
+        }
+    }
 
-            String hash = FileTransferMgr.calculateFileHash(file);
+    // Replaces the catalog with the files of a fresh scan of root, readers never see it half built
+    public synchronized void sync(File root, Collection<File> files) {
+        Map<String, FileMetaData> nextByHash = new ConcurrentHashMap<>();
+        Map<String, FileMetaData> nextByPath = new ConcurrentHashMap<>();
+        Set<String> seenPaths = new HashSet<>();
 
-            if (!sharedFiles.containsKey(hash)) {
-                FileMetaData meta = new FileMetaData(file.getName(), file.length(), file, hash);
-                sharedFiles.put(hash, meta);
+        // Hashed in parallel, collected in order so the same copy of a duplicate wins every time
+        List<Future<FileMetaData>> described = new ArrayList<>();
+        ExecutorService pool = hashPool();
+        for (File file : files) {
+            described.add(pool.submit(() -> describe(file)));
+        }
+        Iterator<Future<FileMetaData>> results = described.iterator();
+        for (File file : files) {
+            seenPaths.add(file.getAbsolutePath());
+            FileMetaData meta;
+            try {
+                meta = results.next().get();
+            }
+            catch (InterruptedException e) {
+                // Keep the catalog as it was, half a scan would drop files
+                for (Future<FileMetaData> f : described) {
+                    f.cancel(true);
+                }
+                Thread.currentThread().interrupt();
+                return;
+            }
+            catch (ExecutionException e) {
+                System.err.println(e.getCause().getMessage());
+                meta = null;
             }
+            if (meta != null) {
+                nextByPath.put(file.getAbsolutePath(), meta);
+                nextByHash.putIfAbsent(meta.getFileHash(), meta);
+            }
+        }
+        filesByPath = nextByPath;
+        sharedFiles = nextByHash;
+        changeListener.run();
+
+        hashIndex.retainUnder(root, seenPaths);
+        hashIndex.save();
+    }
+
+    public synchronized void clear() {
+        filesByPath = new ConcurrentHashMap<>();
+        sharedFiles = new ConcurrentHashMap<>();
+        changeListener.run();
+    }
+
+    public void setHashThreads(int n) {
+        hashThreads = Math.max(1, n);
+        ExecutorService old;
+        synchronized (this) {
+            old = hashPool;
+            hashPool = null;
+        }
+        if (old != null) old.shutdown();
+    }
+
+    public int getHashThreads() {
+        return hashThreads;
+    }
+
+    private synchronized ExecutorService hashPool() {
+        if (hashPool == null) {
+            hashPool = Executors.newFixedThreadPool(hashThreads, task -> {
+                Thread t = new Thread(task, "hasher");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+        return hashPool;
+    }
+
+    public void saveHashIndex() {
+        hashIndex.save();
+    }
+
+    private FileMetaData describe(File file) {
+        try {
+            if (!file.exists() || file.isDirectory())
+                return null;
+
+            String hash = hashIndex.getHash(file);
+            return new FileMetaData(file.getName(), file.length(), file, hash);
         }
         catch (Exception e) {
             System.err.println(e.getMessage());
+            return null;
+        }
+    }
+
+    public ChunkManifest getChunkManifest(String hash, int chunkSize) throws IOException, NoSuchAlgorithmException {
+        FileMetaData meta = sharedFiles.get(hash);
+        if (meta == null) return null;
+
+        String key = hash + ":" + chunkSize;
+        ChunkManifest manifest;
+        synchronized (manifests) {
+            manifest = manifests.get(key);
+        }
+        if (manifest != null && manifest.getFileSize() == meta.getFile().length()) {
+            return manifest;
         }
+
+        manifest = ChunkManifest.build(meta.getFile(), chunkSize);
+        synchronized (manifests) {
+            manifests.put(key, manifest);
+        }
+        return manifest;
     }
 
     public FileMetaData getFileMetaDataByHash(String hash) {
@@ -32,4 +214,7 @@ public class FileMgr {
     }
 
     public List<FileMetaData> getSharedFiles() { return new ArrayList<>(sharedFiles.values()); }
-}
\ No newline at end of file
+
+    // Live and read-only, for walking a large catalog without copying it
+    public Collection<FileMetaData> sharedFilesView() { return Collections.unmodifiableCollection(sharedFiles.values()); }
+}
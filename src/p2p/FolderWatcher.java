@@ -0,0 +1,137 @@
+package p2p;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+/**
+ * Watches a folder tree with a {@link WatchService} and reports changed paths in batches.
+ * Events are collected until the tree has been quiet for {@code settleMs}, so a file that
+ * is still being written is only reported once. A full rescan is requested every
+ * {@code reconcileMs} and whenever the OS dropped events, in case something was missed.
+ */
+public class FolderWatcher implements AutoCloseable {
+    public interface Listener {
+        // Created, modified or deleted paths; a deleted path may have been a whole folder
+        void pathsChanged(Set<File> paths);
+        void rescanNeeded();
+    }
+
+    private static final long MAX_BATCH_DELAY_MS = 1000;
+
+    private final Path root;
+    private final Listener listener;
+    private final long settleMs;
+    private final long reconcileMs;
+    private final WatchService watchService;
+
+    public FolderWatcher(File root, Listener listener, long settleMs, long reconcileMs) throws IOException {
+        this.root = root.toPath();
+        this.listener = listener;
+        this.settleMs = settleMs;
+        this.reconcileMs = reconcileMs;
+        this.watchService = FileSystems.getDefault().newWatchService();
+        registerTree(this.root);
+    }
+
+    // Blocks until keepRunning turns false, the thread is interrupted or the watcher is closed
+    public void run(BooleanSupplier keepRunning) {
+        Set<File> pending = new HashSet<>();
+        long nextReconcile = System.currentTimeMillis() + reconcileMs;
+        long batchStart = 0;
+
+        try {
+            while (keepRunning.getAsBoolean()) {
+                long now = System.currentTimeMillis();
+                long wait = pending.isEmpty() ? Math.max(1, nextReconcile - now) : settleMs;
+                WatchKey key = watchService.poll(wait, TimeUnit.MILLISECONDS);
+
+                if (key != null) {
+                    if (pending.isEmpty()) batchStart = System.currentTimeMillis();
+                    if (!collect(key, pending)) {
+                        pending.clear();
+                        listener.rescanNeeded();
+                        nextReconcile = System.currentTimeMillis() + reconcileMs;
+                        continue;
+                    }
+                    // Keep collecting while events arrive, but never hold a batch back too long
+                    if (System.currentTimeMillis() - batchStart < MAX_BATCH_DELAY_MS) continue;
+                }
+
+                if (!pending.isEmpty()) {
+                    Set<File> batch = pending;
+                    pending = new HashSet<>();
+                    listener.pathsChanged(batch);
+                }
+                else if (System.currentTimeMillis() >= nextReconcile) {
+                    listener.rescanNeeded();
+                    nextReconcile = System.currentTimeMillis() + reconcileMs;
+                }
+            }
+        }
+        catch (InterruptedException | ClosedWatchServiceException e) {
+            // stopped
+        }
+    }
+
+    // Returns false if events were lost and only a rescan can catch up
+    private boolean collect(WatchKey key, Set<File> pending) {
+        Path dir = (Path) key.watchable();
+        boolean complete = true;
+
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == OVERFLOW) {
+                complete = false;
+                continue;
+            }
+            Path child = dir.resolve((Path) event.context());
+            pending.add(child.toFile());
+
+            if (event.kind() == ENTRY_CREATE && Files.isDirectory(child, LinkOption.NOFOLLOW_LINKS)) {
+                try {
+                    registerTree(child);
+                }
+                catch (IOException e) {
+                    System.err.println("Cannot watch " + child + ": " + e.getMessage());
+                    complete = false;
+                }
+            }
+        }
+        if (!key.reset() && dir.equals(root)) {
+            complete = false;
+        }
+        return complete;
+    }
+
+    private void registerTree(Path start) throws IOException {
+        Files.walkFileTree(start, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                dir.register(watchService, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException e) {
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    @Override
+    public void close() {
+        try {
+            watchService.close();
+        }
+        catch (IOException e) {
+            System.err.println(e.getMessage());
+        }
+    }
+}
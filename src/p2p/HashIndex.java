@@ -0,0 +1,150 @@
+package p2p;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Remembers the hash of every local file together with its size, mtime and file key
+ * (inode on Unix). A file whose attributes still match is not hashed again, and the
+ * index is saved to disk so that holds across restarts too.
+ */
+public class HashIndex {
+    private static final int FORMAT_VERSION = 1;
+
+    private static class Entry {
+        final long size;
+        final long lastModified;
+        final String fileKey;
+        final String hash;
+
+        Entry(long size, long lastModified, String fileKey, String hash) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.fileKey = fileKey;
+            this.hash = hash;
+        }
+    }
+
+    private final File indexFile;
+    private final Map<String, Entry> entries;
+    private volatile boolean dirty;
+
+    public HashIndex(File indexFile) {
+        this.indexFile = indexFile;
+        this.entries = new ConcurrentHashMap<>();
+        this.dirty = false;
+        load();
+    }
+
+    public static File defaultLocation() {
+        return new File(System.getProperty("user.home"), ".p2p-ftp" + File.separator + "hash-index.dat");
+    }
+
+    public String getHash(File file) throws IOException, NoSuchAlgorithmException {
+        String path = file.getAbsolutePath();
+        // Stat before hashing, a file modified meanwhile then just misses next time
+        BasicFileAttributes attrs = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+        long size = attrs.size();
+        long lastModified = attrs.lastModifiedTime().toMillis();
+        String fileKey = (attrs.fileKey() != null) ? attrs.fileKey().toString() : "";
+
+        // A hash under another algorithm than the current default is redone too
+        Entry entry = entries.get(path);
+        if (entry != null && entry.size == size && entry.lastModified == lastModified
+                && entry.fileKey.equals(fileKey)
+                && HashService.algorithmOf(entry.hash).equals(HashService.getDefault())) {
+            return entry.hash;
+        }
+
+        String hash = HashService.hashFile(file);
+        entries.put(path, new Entry(size, lastModified, fileKey, hash));
+        dirty = true;
+        return hash;
+    }
+
+    public void remove(File file) {
+        if (entries.remove(file.getAbsolutePath()) != null) {
+            dirty = true;
+        }
+    }
+
+    // Drops entries below root that the last scan of root did not see
+    public void retainUnder(File root, Set<String> seenPaths) {
+        String rootPath = root.getAbsolutePath() + File.separator;
+        Iterator<String> iter = entries.keySet().iterator();
+        while (iter.hasNext()) {
+            String path = iter.next();
+            if (path.startsWith(rootPath) && !seenPaths.contains(path)) {
+                iter.remove();
+                dirty = true;
+            }
+        }
+    }
+
+    public synchronized void save() {
+        if (!dirty) return;
+        dirty = false;
+
+        File parent = indexFile.getAbsoluteFile().getParentFile();
+        if (parent != null) parent.mkdirs();
+        File tmp = new File(indexFile.getPath() + ".tmp");
+
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            out.writeInt(FORMAT_VERSION);
+            Map<String, Entry> snapshot = Map.copyOf(entries);
+            out.writeInt(snapshot.size());
+            for (Map.Entry<String, Entry> e : snapshot.entrySet()) {
+                Entry entry = e.getValue();
+                out.writeUTF(e.getKey());
+                out.writeLong(entry.size);
+                out.writeLong(entry.lastModified);
+                out.writeUTF(entry.fileKey);
+                out.writeUTF(entry.hash);
+            }
+        }
+        catch (IOException e) {
+            System.err.println("Could not save hash index: " + e.getMessage());
+            dirty = true;
+            return;
+        }
+
+        try {
+            Files.move(tmp.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        catch (IOException e) {
+            System.err.println("Could not save hash index: " + e.getMessage());
+            dirty = true;
+        }
+    }
+
+    private void load() {
+        if (!indexFile.isFile()) return;
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)))) {
+            if (in.readInt() != FORMAT_VERSION) {
+                return;
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String path = in.readUTF();
+                long size = in.readLong();
+                long lastModified = in.readLong();
+                String fileKey = in.readUTF();
+                String hash = in.readUTF();
+                entries.put(path, new Entry(size, lastModified, fileKey, hash));
+            }
+        }
+        catch (IOException e) {
+            // A broken index only costs a rehash
+            System.err.println("Ignoring hash index: " + e.getMessage());
+            entries.clear();
+        }
+    }
+}
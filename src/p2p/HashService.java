@@ -0,0 +1,142 @@
+package p2p;
+
+import network.Metrics;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Whole-file content IDs under pluggable hash algorithms. A SHA-256 ID is the bare hex
+ * digest, as it always was, so older peers keep understanding it; any other algorithm
+ * prefixes its name, {@code blake3:<hex>}. Peers agree on the algorithms they both
+ * know before listing files, see {@link network.FileClient}.
+ */
+public class HashService {
+    public static final String SHA256 = "sha256";
+    public static final String BLAKE3 = "blake3";
+
+    public interface Algorithm {
+        String name();
+
+        // The first size bytes of the channel
+        byte[] hash(FileChannel channel, long size) throws IOException;
+    }
+
+    private static final int READ_BUFFER_SIZE = 1024 * 1024;
+
+    private static final Map<String, Algorithm> algorithms = new ConcurrentHashMap<>();
+    private static volatile String defaultAlgorithm = SHA256;
+
+    static {
+        register(new Sha256());
+        register(new Algorithm() {
+            @Override
+            public String name() { return BLAKE3; }
+
+            @Override
+            public byte[] hash(FileChannel channel, long size) throws IOException {
+                return Blake3.hash(channel, size);
+            }
+        });
+    }
+
+    public static void register(Algorithm algorithm) {
+        algorithms.put(algorithm.name(), algorithm);
+    }
+
+    public static boolean isKnown(String name) {
+        return algorithms.containsKey(name);
+    }
+
+    // Every algorithm this node can hash with, in name order
+    public static List<String> names() {
+        List<String> names = new ArrayList<>(algorithms.keySet());
+        Collections.sort(names);
+        return names;
+    }
+
+    // The algorithm newly shared files are hashed with
+    public static void setDefault(String name) {
+        if (!isKnown(name)) throw new IllegalArgumentException("Unknown hash algorithm: " + name);
+        defaultAlgorithm = name;
+    }
+
+    public static String getDefault() {
+        return defaultAlgorithm;
+    }
+
+    public static String hashFile(File file) throws IOException {
+        return hashFile(file, defaultAlgorithm);
+    }
+
+    // The content ID of file under the named algorithm
+    public static String hashFile(File file, String name) throws IOException {
+        Algorithm algorithm = algorithms.get(name);
+        if (algorithm == null) throw new IOException("Unknown hash algorithm: " + name);
+
+        long start = System.nanoTime();
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            String id = contentId(name, algorithm.hash(channel, size));
+            Metrics.meter("hash.bytes").mark(size);
+            Metrics.histogram("hash.file.ms").record((System.nanoTime() - start) / 1_000_000);
+            Metrics.meter("hash.files", name).mark(1);
+            return id;
+        }
+    }
+
+    public static String contentId(String name, byte[] digest) {
+        String hex = HexFormat.of().formatHex(digest);
+        return SHA256.equals(name) ? hex : name + ":" + hex;
+    }
+
+    // Name of the algorithm behind a content ID
+    public static String algorithmOf(String contentId) {
+        int colon = contentId.indexOf(':');
+        return (colon < 0) ? SHA256 : contentId.substring(0, colon);
+    }
+
+    // True if this node can verify a file against the ID
+    public static boolean canVerify(String contentId) {
+        return isKnown(algorithmOf(contentId));
+    }
+
+    // Reads through a direct buffer, the digest takes it without a copy to the heap
+    private static class Sha256 implements Algorithm {
+        private static final ThreadLocal<ByteBuffer> buffers =
+                ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(READ_BUFFER_SIZE));
+
+        @Override
+        public String name() { return SHA256; }
+
+        @Override
+        public byte[] hash(FileChannel channel, long size) throws IOException {
+            MessageDigest digest;
+            try {
+                digest = MessageDigest.getInstance("SHA-256");
+            }
+            catch (NoSuchAlgorithmException e) {
+                throw new IOException(e);
+            }
+            ByteBuffer buffer = buffers.get();
+            long position = 0;
+            while (position < size) {
+                buffer.clear();
+                if (size - position < buffer.capacity()) buffer.limit((int) (size - position));
+                int read = channel.read(buffer, position);
+                if (read < 0) break;
+                position += read;
+                buffer.flip();
+                digest.update(buffer);
+            }
+            return digest.digest();
+        }
+    }
+}
@@ -0,0 +1,149 @@
+package p2p;
+
+import java.util.*;
+import java.util.function.Predicate;
+
+/**
+ * File names by key, indexed for case-insensitive substring search. Every name is cut
+ * into trigrams, runs of three characters, each with the list of entries it occurs in.
+ * A query looks up the trigram of its words that occurs in the fewest entries and checks
+ * only those, so it costs what the query matches rather than what the index holds.
+ * Words shorter than three characters have no trigram, a query made only of those
+ * checks entries one by one until it has enough results.
+ * <p>
+ * Removed entries stay in the lists and are skipped, the index is rebuilt once they
+ * outnumber the live ones.
+ */
+public class NameIndex<K> {
+    // Below this many removed entries a rebuild isn't worth it
+    private static final int MIN_COMPACT = 1024;
+
+    // Entry IDs in the order they were added
+    private static class IdList {
+        int[] ids = new int[4];
+        int size;
+
+        void add(int id) {
+            if (size == ids.length) ids = Arrays.copyOf(ids, size * 2);
+            ids[size++] = id;
+        }
+    }
+
+    private final Map<K, Integer> idByKey = new HashMap<>();
+    // By entry ID, null once removed
+    private final List<K> keys = new ArrayList<>();
+    private final List<String> names = new ArrayList<>();
+    private final Map<Long, IdList> postings = new HashMap<>();
+    private int removed;
+
+    public synchronized int size() {
+        return idByKey.size();
+    }
+
+    // Adds an entry or renames it
+    public synchronized void put(K key, String name) {
+        String lower = name.toLowerCase(Locale.ROOT);
+        Integer id = idByKey.get(key);
+        if (id != null) {
+            if (names.get(id).equals(lower)) return;
+            drop(id);
+        }
+        id = keys.size();
+        keys.add(key);
+        names.add(lower);
+        idByKey.put(key, id);
+        Set<Long> grams = new HashSet<>();
+        for (int i = 0; i + 3 <= lower.length(); i++) {
+            long gram = trigram(lower, i);
+            if (grams.add(gram)) {
+                postings.computeIfAbsent(gram, k -> new IdList()).add(id);
+            }
+        }
+    }
+
+    public synchronized void remove(K key) {
+        Integer id = idByKey.remove(key);
+        if (id == null) return;
+        drop(id);
+        if (removed > MIN_COMPACT && removed > idByKey.size()) compact();
+    }
+
+    // Removes every entry whose key isn't in keep
+    public synchronized void retainAll(Set<K> keep) {
+        for (K key : new ArrayList<>(idByKey.keySet())) {
+            if (!keep.contains(key)) remove(key);
+        }
+    }
+
+    public synchronized void clear() {
+        idByKey.clear();
+        keys.clear();
+        names.clear();
+        postings.clear();
+        removed = 0;
+    }
+
+    /**
+     * Keys of up to limit entries whose name holds every whitespace separated word of
+     * the query, ignoring case, oldest first. An empty query matches everything.
+     */
+    public List<K> search(String query, int limit) {
+        return search(query, limit, key -> true);
+    }
+
+    // The same, counting only entries whose key passes accept
+    public synchronized List<K> search(String query, int limit, Predicate<K> accept) {
+        List<String> words = new ArrayList<>();
+        for (String word : query.toLowerCase(Locale.ROOT).split("\\s+")) {
+            if (!word.isEmpty()) words.add(word);
+        }
+
+        IdList rarest = null;
+        for (String word : words) {
+            for (int i = 0; i + 3 <= word.length(); i++) {
+                IdList list = postings.get(trigram(word, i));
+                if (list == null) return List.of();
+                if (rarest == null || list.size < rarest.size) rarest = list;
+            }
+        }
+
+        List<K> found = new ArrayList<>();
+        int count = (rarest != null) ? rarest.size : names.size();
+        for (int i = 0; i < count && found.size() < limit; i++) {
+            int id = (rarest != null) ? rarest.ids[i] : i;
+            String name = names.get(id);
+            if (name != null && containsAll(name, words) && accept.test(keys.get(id))) {
+                found.add(keys.get(id));
+            }
+        }
+        return found;
+    }
+
+    private void drop(int id) {
+        keys.set(id, null);
+        names.set(id, null);
+        removed++;
+    }
+
+    private void compact() {
+        Map<K, String> live = new LinkedHashMap<>();
+        for (int id = 0; id < keys.size(); id++) {
+            if (keys.get(id) != null) live.put(keys.get(id), names.get(id));
+        }
+        clear();
+        for (Map.Entry<K, String> e : live.entrySet()) {
+            put(e.getKey(), e.getValue());
+        }
+    }
+
+    private static boolean containsAll(String name, List<String> words) {
+        for (String word : words) {
+            if (!name.contains(word)) return false;
+        }
+        return true;
+    }
+
+    private static long trigram(String s, int i) {
+        return ((long) s.charAt(i) << 32) | ((long) s.charAt(i + 1) << 16) | s.charAt(i + 2);
+    }
+}
@@ -1,22 +1,56 @@
 package p2p;
 
+import network.FileClient;
 import network.FileServer;
+import network.Metrics;
+import network.Workers;
 
 import java.io.*;
-import java.security.NoSuchAlgorithmException;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.Semaphore;
 
 public class Node {
+    // A file some peers offer, with their IPs; owners are few, so a plain array
+    // replaced on change is the smallest thing that can be read without locking
     public static class FoundFile {
-        public final String fileHash;
-        public final String fileName;
-        public final Set<String> owners;
+        public final RemoteFile file;
+        private volatile String[] owners = new String[0];
 
-        public FoundFile(String hash, String name) {
-            this.fileHash = hash;
-            this.fileName = name;
-            this.owners = new HashSet<>();
+        public FoundFile(RemoteFile file) {
+            this.file = file;
+        }
+
+        public String getFileHash() { return file.getFileHash(); }
+        public String getFileName() { return file.fileName; }
+        public long getFileSize()   { return file.fileSize; }
+
+        public List<String> getOwners() { return List.of(owners); }
+        public boolean hasOwners()      { return owners.length > 0; }
+
+        synchronized void addOwner(String ip) {
+            for (String owner : owners) {
+                if (owner.equals(ip)) return;
+            }
+            String[] next = Arrays.copyOf(owners, owners.length + 1);
+            next[owners.length] = ip;
+            owners = next;
+        }
+
+        // True if that was the last owner
+        synchronized boolean removeOwner(String ip) {
+            for (int i = 0; i < owners.length; i++) {
+                if (owners[i].equals(ip)) {
+                    String[] next = new String[owners.length - 1];
+                    System.arraycopy(owners, 0, next, 0, i);
+                    System.arraycopy(owners, i + 1, next, i, next.length - i);
+                    owners = next;
+                    break;
+                }
+            }
+            return owners.length == 0;
         }
     }
 
@@ -24,9 +58,9 @@ public class Node {
         public final String fileHash;
         public final String fileName;
 
-        public long totalSize;
-        public long downloadedBytes;
-        public boolean isComplete;
+        public volatile long totalSize;
+        public volatile long downloadedBytes;
+        public volatile boolean isComplete;
 
         public DownloadProgress(String fileHash, String fileName) {
             this.fileHash = fileHash;
@@ -36,6 +70,10 @@ public class Node {
             this.isComplete = false;
         }
 
+        public synchronized void addDownloaded(long bytes) {
+            downloadedBytes += bytes;
+        }
+
         public double getPercent() {
             if (totalSize <= 0) return 0.0;
             double pct = (downloadedBytes * 100.0) / totalSize;
@@ -43,9 +81,39 @@ public class Node {
         }
     }
 
-    // Exclusion logic
+    // A download still running; its verified chunks can already be served to other peers
+    public static class PartialFile {
+        public final String fileName;
+        public final DownloadState state;
+        public final DownloadStorage storage;
+        public final ChunkManifest manifest;
+
+        public PartialFile(String fileName, DownloadState state, DownloadStorage storage, ChunkManifest manifest) {
+            this.fileName = fileName;
+            this.state = state;
+            this.storage = storage;
+            this.manifest = manifest;
+        }
+
+        // True if every chunk overlapping the range is verified
+        // False for a range reaching outside the file, whatever a peer asked for
+        public boolean hasRange(long offset, long length) {
+            if (offset < 0 || length < 0 || offset + length > state.getFileSize()) return false;
+            if (length == 0) return true;
+            int chunkSize = state.getChunkSize();
+            int first = (int) (offset / chunkSize);
+            int last = (int) ((offset + length - 1) / chunkSize);
+            for (int i = first; i <= last; i++) {
+                if (!state.isDone(i)) return false;
+            }
+            return true;
+        }
+    }
+
+    // Exclusion logic, the sets are what the user gave and the matcher is compiled from them
     private final Set<File> excludedFolders;
     private final Set<String> excludedMasks;
+    private volatile ExclusionMatcher exclusions = ExclusionMatcher.NONE;
     private boolean checkRootOnly;
 
     // Node fields
@@ -57,22 +125,75 @@ public class Node {
     private File downloadFolder;
     private final boolean isDockerMode;
 
+    private static final long DISCONNECT_TIMEOUT_MS = 5000;
+
     // Background controls
     private volatile boolean keepDiscovering = true;
     private volatile boolean keepSharing = true;
     private volatile boolean keepMonitoringFolder = false;
-
-    private final Map<String, FoundFile> foundMap;
+    private volatile FolderWatcher folderWatcher;
+    private volatile int monitorGeneration = 0;
+    // Every thread the node starts, so disconnect() can stop them all
+    private final Workers workers;
+
+    private final Map<ContentKey, FoundFile> foundMap;
+    // The names in foundMap, for searching them
+    private final NameIndex<ContentKey> foundNames;
     private final Map<String, DownloadProgress> activeDownloads;
+    private final Set<String> runningDownloads;
+    // Downloads running right now, other peers can fetch from them already
+    private final Map<String, PartialFile> partialFiles;
+    // Which files download when, in parallel up to a limit
+    private final DownloadManager downloads;
+    // Both of the above as offered to peers, versioned so they can ask for changes only
+    private final Catalog catalog;
+
+    // Download concurrency, shared by every download so one peer is never swamped
+    private volatile int maxChunksInFlight = 8;
+    private volatile int maxChunksPerPeer = 4;
+    private final Map<String, Semaphore> peerSlots;
 
     public Node(String peerID, String ip, int port, boolean isDocker) {
         this.self = new Peer(peerID, ip, port);
         this.peerMgr = new PeerMgr();
-        this.fileMgr = new FileMgr();
+        this.peerMgr.setCatalogListener(new PeerMgr.CatalogListener() {
+            @Override
+            public void fileAdded(Peer peer, RemoteFile file) {
+                onRemoteFileAdded(peer, file);
+            }
+
+            @Override
+            public void fileRemoved(Peer peer, RemoteFile file) {
+                onRemoteFileRemoved(peer, file.key);
+            }
+        });
+        this.fileMgr = new FileMgr(new HashIndex(HashIndex.defaultLocation()));
         this.isDockerMode = isDocker;
 
         this.foundMap = new ConcurrentHashMap<>();
+        this.foundNames = new NameIndex<>();
         this.activeDownloads = new ConcurrentHashMap<>();
+        this.peerSlots = new ConcurrentHashMap<>();
+        this.runningDownloads = ConcurrentHashMap.newKeySet();
+        this.partialFiles = new ConcurrentHashMap<>();
+        this.catalog = new Catalog(this::catalogEntries);
+        this.fileMgr.setChangeListener(catalog::markDirty);
+        this.workers = new Workers();
+        this.downloads = new DownloadManager(new DownloadManager.Downloader() {
+            @Override
+            public boolean download(String fileHash, String fileName) {
+                return multiSourceDownload(fileHash, fileName);
+            }
+
+            @Override
+            public void discard(String fileHash, String fileName) {
+                discardDownload(fileHash);
+            }
+        }, workers, 3);
+
+        Metrics.gauge("shared.files", () -> fileMgr.getSharedFiles().size());
+        Metrics.gauge("peers.known", () -> peerMgr.getAllPeers().size());
+        Metrics.gauge("catalog.version", catalog::getVersion);
 
         this.excludedFolders = new HashSet<>();
         this.excludedMasks   = new HashSet<>();
@@ -104,68 +225,83 @@ public class Node {
     }
 
     private void refreshSharedFolderWithExclusions(File root) {
-        fileMgr.getSharedFiles().clear();
-        if (root == null || !root.isDirectory()) return;
+        if (root == null || !root.isDirectory()) {
+            fileMgr.clear();
+            return;
+        }
 
+        long start = System.nanoTime();
+        List<File> files = new ArrayList<>();
         if (checkRootOnly) {
             File[] top = root.listFiles();
-            if (top == null) return;
-            for (File f : top) {
-                if (f.isDirectory()) {}
-                else {
-                    if (shouldIncludeLocalFile(f)) {
-                        fileMgr.addSharedFile(f);
+            if (top != null) {
+                for (File f : top) {
+                    if (f.isDirectory()) {}
+                    else {
+                        if (shouldIncludeLocalFile(f)) {
+                            files.add(f);
+                        }
                     }
                 }
             }
         }
         else {
-            recursiveScan(root);
+            recursiveScan(root, files);
         }
+        // Unchanged files come straight out of the hash index
+        fileMgr.sync(root, files);
+        Metrics.histogram("scan.duration.ms").record((System.nanoTime() - start) / 1_000_000);
     }
 
-    private void recursiveScan(File folder) {
-        if (isFolderExcluded(folder)) {
-            return;
-        }
+    private void recursiveScan(File folder, List<File> files) {
+        files.addAll(ForkJoinPool.commonPool().invoke(new FolderScan(folder)));
+    }
+
+    // One task per folder with its subfolders forked, so a wide tree is listed on every core
+    private class FolderScan extends RecursiveTask<List<File>> {
+        private final File folder;
 
-        File[] all = folder.listFiles();
-        if (all == null) return;
+        FolderScan(File folder) {
+            this.folder = folder;
+        }
 
-        for (File file : all) {
-            if (file.isDirectory()) {
-                recursiveScan(file);
+        @Override
+        protected List<File> compute() {
+            List<File> files = new ArrayList<>();
+            if (isFolderExcluded(folder)) {
+                return files;
             }
-            else {
-                if (shouldIncludeLocalFile(file)) {
-                    fileMgr.addSharedFile(file);
+
+            File[] all = folder.listFiles();
+            if (all == null) return files;
+
+            List<FolderScan> subfolders = new ArrayList<>();
+            for (File file : all) {
+                if (file.isDirectory()) {
+                    FolderScan sub = new FolderScan(file);
+                    sub.fork();
+                    subfolders.add(sub);
+                }
+                else {
+                    if (shouldIncludeLocalFile(file)) {
+                        files.add(file);
+                    }
                 }
             }
+            // Joined in listing order, so every scan lists the files in the same order
+            for (FolderScan sub : subfolders) {
+                files.addAll(sub.join());
+            }
+            return files;
         }
     }
 
     private boolean isFolderExcluded(File folder) {
-        String folderPath = folder.getAbsolutePath();
-        for (File ex : excludedFolders) {
-            String exPath = ex.getAbsolutePath();
-            if (folderPath.equals(exPath) || folderPath.startsWith(exPath + File.separator)) {
-                return true;
-            }
-        }
-        return false;
+        return exclusions.isFolderExcluded(folder);
     }
 
     private boolean shouldIncludeLocalFile(File file) {
-        if (isFolderExcluded(file.getParentFile())) {
-            return false;
-        }
-        String lower = file.getName().toLowerCase();
-        for (String mask : excludedMasks) {
-            if (matchesMask(lower, mask)) {
-                return false;
-            }
-        }
-        return true;
+        return !exclusions.isFileExcluded(file);
     }
 
     private void addTopLevelFiles(File root) {
@@ -178,12 +314,6 @@ public class Node {
         }
     }
 
-    // Experiment with the mask further
-    private boolean matchesMask(String fileName, String mask) {
-        String regex = mask.replace(".", "\\.").replace("*", ".*");
-        return fileName.matches(regex);
-    }
-
     public void setCheckRootOnly(boolean val) {
         this.checkRootOnly = val;
     }
@@ -198,25 +328,34 @@ public class Node {
         }
         else {
             excludedFolders.add(folder);
+            compileExclusions();
         }
     }
 
     public void removeExcludedFolder(File folder) {
         excludedFolders.remove(folder);
+        compileExclusions();
     }
 
     public void addExcludedMask(String mask) {
         excludedMasks.add(mask.toLowerCase());
+        compileExclusions();
     }
 
     public void removeExcludedMask(String mask) {
         excludedMasks.remove(mask.toLowerCase());
+        compileExclusions();
+    }
+
+    // Scans running meanwhile keep the matcher they started with
+    private synchronized void compileExclusions() {
+        exclusions = new ExclusionMatcher(new ArrayList<>(excludedFolders), new ArrayList<>(excludedMasks));
+        self.setExclusions(exclusions);
     }
 
     public void applyExclusionsNow() {
         // 1) re-check local
         if (sharedFolder != null && sharedFolder.isDirectory()) {
-            fileMgr.getSharedFiles().clear();
             self.getSharedFiles().clear();
 
             refreshSharedFolderWithExclusions(sharedFolder);
@@ -230,34 +369,21 @@ public class Node {
                 }
             }
         }
-        // 2) re-check found
-        Iterator<Map.Entry<String, FoundFile>> iter = foundMap.entrySet().iterator();
-        while (iter.hasNext()) {
-            Map.Entry<String, FoundFile> e = iter.next();
-            FoundFile foundFile = e.getValue();
-            if (shouldIncludePseudoFile(foundFile.fileName)) {
-                iter.remove();
-            }
-        }
+        // 2) re-check found, files a removed mask used to hide come back as well
+        rebuildFoundMap();
     }
 
-    private boolean shouldIncludePseudoFile(String fileName) {
+    private boolean isRemoteFileExcluded(String fileName) {
         if (checkRootOnly) {
             if (fileName.contains("/") || fileName.contains("\\")) {
                 return true;
             }
         }
-        String lower = fileName.toLowerCase();
-        for (String mask : excludedMasks) {
-            if (matchesMask(lower, mask)) {
-                return true;
-            }
-        }
-        return false;
+        return exclusions.isNameExcluded(fileName);
     }
 
     public void startServer() {
-        new Thread(() -> FileServer.startServer(self.getPort(), this)).start();
+        workers.start("FileServer", () -> FileServer.startServer(self.getPort(), this));
     }
 
     public void stopServer() {
@@ -266,17 +392,15 @@ public class Node {
 
     public void startPeerDiscovery() {
         keepDiscovering = true;
-        new Thread(() -> {
+        workers.start("discovery", () -> {
             while (keepDiscovering) {
                 try {
-                    peerMgr.clearPeers();
                     peerMgr.discoverPeers(self.getIP(), self.getPort());
-                    updateFoundMapFromPeers();
                     Thread.sleep(5000);
                 }
                 catch (InterruptedException e) { break; }
             }
-        }).start();
+        });
     }
 
     public void stopPeerDiscovery() {
@@ -285,22 +409,37 @@ public class Node {
 
     public void startFileSharing() {
         keepSharing = true;
+        downloads.start();
         if (isDockerMode) {
-            new Thread(() -> {
+            workers.start("sharing", () -> {
                 while (keepSharing) {
                     try {
-                        for (FoundFile ff : foundMap.values()) {
-                            boolean haveLocal = (fileMgr.getFileMetaDataByHash(ff.fileHash) != null);
-                            boolean isDownloading = activeDownloads.containsKey(ff.fileHash);
-                            if (!haveLocal && !isDownloading) {
-                                multiSourceDownload(ff.fileHash, ff.fileName);
+                        // Smallest first, the queue keeps that order within a priority
+                        List<FoundFile> found = new ArrayList<>(foundMap.values());
+                        found.sort(Comparator.comparingLong(FoundFile::getFileSize));
+                        for (FoundFile ff : found) {
+                            String fileHash = ff.getFileHash();
+                            if (fileMgr.getFileMetaDataByHash(fileHash) == null) {
+                                downloads.offer(fileHash, ff.getFileName(), ff.getFileSize());
                             }
                         }
                         Thread.sleep(5000);
                     }
                     catch (InterruptedException e) { break; }
                 }
-            }).start();
+            });
+        }
+        else {
+            // GUI downloads are picked by hand, only the interrupted ones are resumed here
+            workers.start("resume", () -> {
+                while (keepSharing) {
+                    try {
+                        resumeInterruptedDownloads();
+                        Thread.sleep(5000);
+                    }
+                    catch (InterruptedException e) { break; }
+                }
+            });
         }
     }
 
@@ -311,32 +450,101 @@ public class Node {
     public void startLocalFolderMonitor() {
         keepMonitoringFolder = true;
         if (sharedFolder == null) return;
-        new Thread(() -> {
-            while (keepMonitoringFolder) {
-                try {
-                    Thread.sleep(5000);
-
-                    fileMgr.getSharedFiles().clear();
-                    self.getSharedFiles().clear();
+        File root = sharedFolder;
+        int generation = ++monitorGeneration;
+        workers.start("folder-monitor", () -> {
+            try (FolderWatcher watcher = new FolderWatcher(root, new FolderWatcher.Listener() {
+                @Override
+                public void pathsChanged(Set<File> paths) {
+                    applyFolderChanges(paths);
+                }
 
-                    refreshSharedFolderWithExclusions(sharedFolder);
+                @Override
+                public void rescanNeeded() {
+                    rescanSharedFolder();
+                }
+            }, 200, 60_000)) {
+                folderWatcher = watcher;
+                if (generation != monitorGeneration) return;
 
-                    if (checkRootOnly) {
-                        addTopLevelFiles(sharedFolder);
-                    }
-                    else {
-                        for (FileMetaData md : fileMgr.getSharedFiles()) {
-                            self.addSharedFile(md.getFile());
-                        }
+                // Catch anything that changed before the watch was in place
+                rescanSharedFolder();
+                watcher.run(() -> keepMonitoringFolder && generation == monitorGeneration);
+            }
+            catch (IOException e) {
+                System.err.println("Folder watch unavailable, polling instead: " + e.getMessage());
+                while (keepMonitoringFolder && generation == monitorGeneration) {
+                    try {
+                        Thread.sleep(5000);
+                        rescanSharedFolder();
                     }
+                    catch (InterruptedException ie) { break; }
                 }
-                catch (InterruptedException e) { break; }
             }
-        }).start();
+        });
     }
 
     public void stopLocalFolderMonitor() {
         keepMonitoringFolder = false;
+        monitorGeneration++;
+        FolderWatcher watcher = folderWatcher;
+        if (watcher != null) {
+            watcher.close();
+            folderWatcher = null;
+        }
+    }
+
+    private void rescanSharedFolder() {
+        self.getSharedFiles().clear();
+
+        refreshSharedFolderWithExclusions(sharedFolder);
+
+        if (checkRootOnly) {
+            addTopLevelFiles(sharedFolder);
+        }
+        else {
+            for (FileMetaData md : fileMgr.getSharedFiles()) {
+                self.addSharedFile(md.getFile());
+            }
+        }
+    }
+
+    private void applyFolderChanges(Set<File> paths) {
+        for (File path : paths) {
+            if (path.isDirectory()) {
+                // A new or moved-in folder, its files may predate the watch on it
+                if (checkRootOnly || isFolderExcluded(path)) continue;
+                List<File> files = new ArrayList<>();
+                recursiveScan(path, files);
+                for (File file : files) {
+                    applyLocalFileChange(file);
+                }
+            }
+            else {
+                applyLocalFileChange(path);
+            }
+        }
+        fileMgr.saveHashIndex();
+    }
+
+    private void applyLocalFileChange(File file) {
+        boolean include = file.isFile()
+                && shouldIncludeLocalFile(file)
+                && (!checkRootOnly || sharedFolder.equals(file.getParentFile()));
+
+        self.removeSharedFile(file);
+        if (!file.exists()) {
+            // May have been a whole folder
+            String prefix = file.getAbsolutePath() + File.separator;
+            self.getSharedFiles().removeIf(f -> f.getAbsolutePath().startsWith(prefix));
+        }
+        if (include) {
+            fileMgr.updateFile(file);
+            self.addSharedFile(file);
+        }
+        else {
+            fileMgr.removeFile(file);
+        }
     }
 
     public void disconnect() {
@@ -345,54 +553,97 @@ public class Node {
         stopFileSharing();
         stopLocalFolderMonitor();
         stopServer();
+        // Running downloads are interrupted and go back to the queue
+        downloads.stop();
+        workers.cancelAll(DISCONNECT_TIMEOUT_MS);
+        network.FileClient.closeConnections();
 
         // Clear local data
         self.getSharedFiles().clear();
+        peerMgr.clearPeers();
         foundMap.clear();
+        foundNames.clear();
         activeDownloads.clear();
-        fileMgr.getSharedFiles().clear();
+        fileMgr.clear();
     }
 
-    private void updateFoundMapFromPeers() {
-        for (Peer peer : peerMgr.getAllPeers()) {
-            for (File pseudoFile : peer.getSharedFiles()) {
-                String combined = pseudoFile.getName();
-                int index = combined.indexOf('_');
-                if (index < 0) continue;
+    private void onRemoteFileAdded(Peer peer, RemoteFile file) {
+        if (!isRemoteFileVisible(file)) {
+            return;
+        }
+        FoundFile foundFile = foundMap.computeIfAbsent(file.key, k -> new FoundFile(file));
+        foundFile.addOwner(peer.getIP());
+        foundNames.put(file.key, foundFile.getFileName());
+    }
 
-                String hash = combined.substring(0, index);
-                String name = combined.substring(index + 1);
+    private void onRemoteFileRemoved(Peer peer, ContentKey key) {
+        FoundFile foundFile = foundMap.get(key);
+        if (foundFile == null) return;
+        if (foundFile.removeOwner(peer.getIP()) && foundMap.remove(key, foundFile)) {
+            foundNames.remove(key);
+        }
+    }
 
-                if (shouldIncludePseudoFile(name)) {
-                    continue;
-                }
-                if (fileMgr.getFileMetaDataByHash(hash) != null) {
-                    continue;
-                }
+    // Not filtered out, verifiable, and not already here
+    private boolean isRemoteFileVisible(RemoteFile file) {
+        if (isRemoteFileExcluded(file.fileName)) {
+            return false;
+        }
+        // A file under a hash this node doesn't know could never be verified
+        if (!HashService.isKnown(file.key.algorithm())) {
+            return false;
+        }
+        return fileMgr.getFileMetaDataByHash(file.getFileHash()) == null;
+    }
 
-                FoundFile foundFile = foundMap.get(hash);
-                if (foundFile == null) {
-                    foundFile = new FoundFile(hash, name);
-                    foundMap.put(hash, foundFile);
-                }
-                foundFile.owners.add(peer.getIP());
+    // Starts over from the peer catalogs, for when the filters changed
+    private void rebuildFoundMap() {
+        Map<ContentKey, FoundFile> rebuilt = new HashMap<>();
+        for (Peer peer : new ArrayList<>(peerMgr.getAllPeers())) {
+            for (RemoteFile file : peer.getFiles()) {
+                if (!isRemoteFileVisible(file)) continue;
+                rebuilt.computeIfAbsent(file.key, k -> new FoundFile(file)).addOwner(peer.getIP());
             }
         }
+        // Swap entry by entry so lookups never find the map empty
+        foundMap.keySet().retainAll(rebuilt.keySet());
+        foundMap.putAll(rebuilt);
+        foundNames.retainAll(rebuilt.keySet());
+        for (FoundFile foundFile : rebuilt.values()) {
+            foundNames.put(foundFile.file.key, foundFile.getFileName());
+        }
     }
 
-    public void multiSourceDownload(String fileHash, String fileName) {
+    /**
+     * Downloads a file right away on the calling thread, true once it is complete.
+     * Everything else should go through {@link #getDownloadManager()}.
+     */
+    public boolean multiSourceDownload(String fileHash, String fileName) {
+        // The resume loop and the user may both ask for the same file
+        if (!runningDownloads.add(fileHash)) {
+            return false;
+        }
+        try {
+            return downloadFile(fileHash, fileName);
+        }
+        finally {
+            runningDownloads.remove(fileHash);
+        }
+    }
+
+    private boolean downloadFile(String fileHash, String fileName) {
         DownloadProgress progress = activeDownloads.get(fileHash);
         if (progress == null) {
             progress = new DownloadProgress(fileHash, fileName);
             activeDownloads.put(fileHash, progress);
         }
-        FoundFile foundFile = foundMap.get(fileHash);
+        FoundFile foundFile = foundMap.get(ContentKey.of(fileHash));
         if (foundFile == null) {
-            return;
+            return false;
         }
-        List<String> owners = new ArrayList<>(foundFile.owners);
+        List<String> owners = foundFile.getOwners();
         if (owners.isEmpty()) {
-            return;
+            return false;
         }
 
         long fileSize = 0;
@@ -404,79 +655,238 @@ public class Node {
             }
         }
         if (fileSize <= 0) {
-            return;
+            return false;
         }
         progress.totalSize = fileSize;
 
-        long chunkSize = 256L * 1024L;
-        long totalChunks = (fileSize + chunkSize - 1) / chunkSize;
-
-        File tempFolder = new File(downloadFolder, "temp_" + fileHash);
-        tempFolder.mkdirs();
-
-        for (int i = 0; i < totalChunks; i++) {
-            long offset = i * chunkSize;
-            long csize = Math.min(chunkSize, fileSize - offset);
-
-            String chosenIP = owners.get(i % owners.size());
-            File chunkFile = new File(tempFolder, "chunk_" + i);
-
-            boolean isOK = network.FileClient.downloadChunk(chosenIP, 4113, fileHash, offset, csize, chunkFile);
-            if (isOK) {
-                progress.downloadedBytes += csize;
-            }
+        // Roots that turned out wrong, so a retry takes another owner's manifest
+        Set<String> rejectedRoots = new HashSet<>();
+        ChunkManifest manifest = selectManifest(fileHash, fileSize, owners, rejectedRoots);
+        if (manifest == null) {
+            System.err.println("No chunk manifest for " + fileName + ", verifying only at the end");
         }
-        reassembleFile(fileHash, fileName, fileSize, tempFolder);
-        progress.isComplete = true;
-    }
 
-    private void reassembleFile(String hash, String name, long size, File tempFolder) {
-        File finalFile = new File(downloadFolder, name);
-        long written = 0;
-        int chunkIndex = 0;
+        DownloadStorage storage;
+        try {
+            storage = new DownloadStorage(downloadFolder, fileHash, fileName, fileSize);
+        }
+        catch (IOException e) {
+            System.err.println(e.getMessage());
+            return false;
+        }
+        boolean first = true;
+        try {
+            while (true) {
+                int chunkSize = (manifest != null) ? manifest.getChunkSize() : DownloadEngine.DEFAULT_CHUNK_SIZE;
+                DownloadState state = DownloadState.open(downloadFolder, fileName, fileHash, fileSize, chunkSize);
+                if (first && storage.isFresh()) {
+                    state.reset();
+                }
+                first = false;
+
+                DownloadEngine engine = new DownloadEngine(fileHash, fileSize, manifest, owners, 4113,
+                        maxChunksInFlight, maxChunksPerPeer, peerSlots);
+                boolean isOK;
+                // Without a manifest nothing is verified before the end, so there is nothing to pass on
+                if (manifest != null) {
+                    partialFiles.put(fileHash, new PartialFile(fileName, state, storage, manifest));
+                    catalog.markDirty();
+                }
+                try {
+                    isOK = engine.run(storage, state, progress);
+                }
+                finally {
+                    if (partialFiles.remove(fileHash) != null) catalog.markDirty();
+                }
+                if (!isOK) {
+                    // Chunks from several owners failing points at the manifest rather than at them
+                    if (manifest != null && engine.isManifestSuspect() && !Thread.currentThread().isInterrupted()) {
+                        rejectedRoots.add(rootOf(manifest));
+                        ChunkManifest next = selectManifest(fileHash, fileSize, owners, rejectedRoots);
+                        if (next != null) {
+                            System.err.println("Chunks of " + fileName + " keep failing the manifest, trying another one");
+                            manifest = next;
+                            continue;
+                        }
+                    }
+                    // Keep the .part and state files, the next attempt picks up from there
+                    System.err.println("Download incomplete => " + fileName);
+                    activeDownloads.remove(fileHash);
+                    return false;
+                }
 
-        try (FileOutputStream fos = new FileOutputStream(finalFile)) {
-            while (written < size) {
-                File cf = new File(tempFolder, "chunk_" + chunkIndex);
-                if (!cf.exists()) {
-                    throw new IOException("Missing chunk => " + cf);
+                String calc;
+                try {
+                    calc = HashService.hashFile(storage.getPartFile(), HashService.algorithmOf(fileHash));
                 }
-                try (FileInputStream fis = new FileInputStream(cf)) {
-                    byte[] buf = new byte[256*1024];
-                    int read;
-                    while ((read = fis.read(buf)) != -1) {
-                        fos.write(buf, 0, read);
-                        written += read;
+                catch (IOException e) {
+                    System.err.println(e.getMessage());
+                    activeDownloads.remove(fileHash);
+                    return false;
+                }
+                if (calc.equals(fileHash)) {
+                    try {
+                        storage.complete();
                     }
+                    catch (IOException e) {
+                        System.err.println(e.getMessage());
+                        activeDownloads.remove(fileHash);
+                        return false;
+                    }
+                    state.delete();
+                    progress.isComplete = true;
+                    return true;
                 }
-                chunkIndex++;
+
+                // Chunks that passed the manifest can only fail here if the manifest was wrong,
+                // under another one only the chunks that don't match it are fetched again
+                if (manifest != null) {
+                    rejectedRoots.add(rootOf(manifest));
+                    ChunkManifest next = selectManifest(fileHash, fileSize, owners, rejectedRoots);
+                    if (next != null) {
+                        System.err.println("HASH MISMATCH: expected " + fileHash + " got " + calc
+                                + ", rechecking chunks against another manifest");
+                        manifest = next;
+                        continue;
+                    }
+                }
+                System.err.println("HASH MISMATCH: expected " + fileHash + " got " + calc + ", discarding");
+                storage.discard();
+                state.delete();
+                activeDownloads.remove(fileHash);
+                return false;
             }
         }
-        catch (IOException e) {
-            System.err.println(e.getMessage());
+        finally {
+            storage.close();
         }
+    }
 
-        try {
-            String calc = p2p.FileTransferMgr.calculateFileHash(finalFile);
-            if (!calc.equals(hash)) {
-                System.err.println("HASH MISMATCH: expected " + hash + " got " + calc);
+    /**
+     * A manifest whose root at least two owners agree on, so a single bad owner can't
+     * make every honest chunk fail. With only one owner answering, or no two agreeing,
+     * the first one that checks out. Roots in rejected are skipped.
+     */
+    private ChunkManifest selectManifest(String fileHash, long fileSize, List<String> owners, Set<String> rejected) {
+        Map<String, ChunkManifest> byRoot = new LinkedHashMap<>();
+        Map<String, Integer> votes = new HashMap<>();
+        for (String ip : owners) {
+            ChunkManifest manifest = network.FileClient.requestChunkManifest(ip, 4113, fileHash, fileSize);
+            if (manifest == null) continue;
+            String root = rootOf(manifest);
+            if (rejected.contains(root)) continue;
+            byRoot.putIfAbsent(root, manifest);
+            if (votes.merge(root, 1, Integer::sum) >= 2) {
+                return byRoot.get(root);
             }
         }
-        catch (IOException | NoSuchAlgorithmException e) {
-            System.err.println(e.getMessage());
+        return byRoot.isEmpty() ? null : byRoot.values().iterator().next();
+    }
+
+    private static String rootOf(ChunkManifest manifest) {
+        return HexFormat.of().formatHex(manifest.getRoot()) + "/" + manifest.getChunkSize();
+    }
+
+    // Queues every download that left a state file behind and has a known owner again
+    public void resumeInterruptedDownloads() {
+        for (DownloadState state : DownloadState.findAll(downloadFolder)) {
+            FoundFile foundFile = foundMap.get(ContentKey.of(state.getFileHash()));
+            if (foundFile == null || !foundFile.hasOwners()) continue;
+            downloads.offer(state.getFileHash(), state.getFileName(), state.getFileSize());
         }
+    }
+
+    // Deletes the .part and state files of a download that is not running
+    private void discardDownload(String fileHash) {
+        if (downloadFolder == null || runningDownloads.contains(fileHash)) return;
+        activeDownloads.remove(fileHash);
+        DownloadStorage.partFile(downloadFolder, fileHash).delete();
+        DownloadState.stateFile(downloadFolder, fileHash).delete();
+    }
 
-        File[] leftover = tempFolder.listFiles();
-        if (leftover != null) {
-            for (File f : leftover) {
-                f.delete();
+    /**
+     * Chunks of a file this node can vouch for, null if it has none of it or can't tell
+     * in chunks of that size. Whole files are mapped in chunks no smaller than the ones
+     * this node hashes them in, running downloads only in the chunks of their manifest;
+     * the caller picks the size, so anything finer would make a map as big as it likes.
+     */
+    public BitSet getPieceMap(String fileHash, int chunkSize) {
+        FileMetaData meta = fileMgr.getFileMetaDataByHash(fileHash);
+        if (meta != null) {
+            if (chunkSize < DownloadEngine.DEFAULT_CHUNK_SIZE
+                    || (meta.getFileSize() + chunkSize - 1) / chunkSize > ChunkManifest.MAX_CHUNKS) {
+                return null;
             }
+            BitSet all = new BitSet();
+            all.set(0, ChunkManifest.chunkCount(meta.getFileSize(), chunkSize));
+            return all;
+        }
+        PartialFile partial = partialFiles.get(fileHash);
+        if (partial != null && partial.state.getChunkSize() == chunkSize) {
+            return partial.state.getDoneChunks();
+        }
+        return null;
+    }
+
+    public PartialFile getPartialFile(String fileHash) {
+        return partialFiles.get(fileHash);
+    }
+
+    public List<PartialFile> getPartialFiles() { return new ArrayList<>(partialFiles.values()); }
+
+    public Catalog getCatalog() { return catalog; }
+
+    // Whole files, and running downloads of files this node has no whole copy of
+    private Collection<FileClient.FileInfo> catalogEntries() {
+        Map<String, FileClient.FileInfo> entries = new HashMap<>();
+        for (FileMetaData meta : fileMgr.sharedFilesView()) {
+            entries.put(meta.getFileHash(),
+                    new FileClient.FileInfo(meta.getFileHash(), meta.getFileName(), meta.getFileSize(), false));
+        }
+        for (PartialFile partial : partialFiles.values()) {
+            String fileHash = partial.state.getFileHash();
+            entries.putIfAbsent(fileHash,
+                    new FileClient.FileInfo(fileHash, partial.fileName, partial.state.getFileSize(), true));
         }
-        tempFolder.delete();
+        return entries.values();
     }
 
     public List<FoundFile> getFoundFiles() { return new ArrayList<>(foundMap.values()); }
+
+    // Up to limit found files whose names hold every word of the query, ignoring case
+    public List<FoundFile> searchFoundFiles(String query, int limit) {
+        List<FoundFile> found = new ArrayList<>();
+        for (ContentKey key : foundNames.search(query, limit)) {
+            FoundFile foundFile = foundMap.get(key);
+            if (foundFile != null) found.add(foundFile);
+        }
+        return found;
+    }
+
+    /**
+     * Asks every known peer for its files matching the query, without waiting for their
+     * catalogs. What they answer is added to the found files like any catalog entry.
+     */
+    public List<FoundFile> searchPeers(String query, int limit) {
+        Map<ContentKey, FoundFile> found = new LinkedHashMap<>();
+        for (Peer peer : new ArrayList<>(peerMgr.getAllPeers())) {
+            List<FileClient.FileInfo> results = FileClient.search(peer.getIP(), peer.getPort(), query, limit);
+            if (results == null) continue;
+            for (FileClient.FileInfo info : results) {
+                RemoteFile file = RemoteFile.of(info);
+                // Kept with the peer's catalog, so the next round drops it once the peer no longer has it
+                if (peer.putFileIfAbsent(file) == null) {
+                    onRemoteFileAdded(peer, file);
+                }
+                FoundFile foundFile = foundMap.get(file.key);
+                if (foundFile != null && found.size() < limit) found.putIfAbsent(file.key, foundFile);
+            }
+        }
+        return new ArrayList<>(found.values());
+    }
     public List<DownloadProgress> listActiveDownloads() { return new ArrayList<>(activeDownloads.values()); }
+    public DownloadProgress getDownloadProgress(String fileHash) { return activeDownloads.get(fileHash); }
+    public DownloadManager getDownloadManager() { return downloads; }
     public FileMgr getFileManager() { return fileMgr; }
     public Peer getSelf() { return self; }
 
@@ -487,7 +897,6 @@ public class Node {
         }
         this.sharedFolder = sharedFolder;
 
-        fileMgr.getSharedFiles().clear();
         self.getSharedFiles().clear();
 
         refreshSharedFolderWithExclusions(this.sharedFolder);
@@ -500,6 +909,12 @@ public class Node {
                 self.addSharedFile(metadata.getFile());
             }
         }
+
+        // Move the watch over to the new folder
+        if (keepMonitoringFolder) {
+            stopLocalFolderMonitor();
+            startLocalFolderMonitor();
+        }
     }
 
     public void setDownloadFolder(String path) {
@@ -508,6 +923,29 @@ public class Node {
         downloadFolder = df;
     }
 
+    public void setMaxChunksInFlight(int n) {
+        this.maxChunksInFlight = Math.max(1, n);
+    }
+    public int getMaxChunksInFlight() {
+        return maxChunksInFlight;
+    }
+
+    // Requests already running finish on the old slots, new ones see the new limit
+    public void setMaxChunksPerPeer(int n) {
+        this.maxChunksPerPeer = Math.max(1, n);
+        peerSlots.clear();
+    }
+    public int getMaxChunksPerPeer() {
+        return maxChunksPerPeer;
+    }
+
+    public void setMaxParallelDownloads(int n) {
+        downloads.setMaxParallel(n);
+    }
+    public int getMaxParallelDownloads() {
+        return downloads.getMaxParallel();
+    }
+
     public File getSharedFolder() { return sharedFolder; }
 
     public File getDownloadFolder() { return downloadFolder; }
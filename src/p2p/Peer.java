@@ -1,28 +1,34 @@
 package p2p;
 
 import java.io.File;
-import java.util.ArrayList;
-import java.util.HashSet;
-import java.util.List;
-import java.util.Set;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class Peer {
     private final String peerID;
     private final String ip;
     private final int port;
 
+    // The local node's own files
     private final List<File> sharedFiles;
+    // What a remote peer offers, by content ID, as its catalog last said
+    private final Map<ContentKey, RemoteFile> files;
+    private volatile long lastSeen;
 
-    private final Set<File> excludedFolders;
-    private final Set<String> excludedMasks;
+    private volatile ExclusionMatcher exclusions;
 
     public Peer(String peerID, String ip, int port) {
         this.peerID = peerID;
         this.ip = ip;
         this.port = port;
-        this.sharedFiles = new ArrayList<>();
-        this.excludedFolders = new HashSet<>();
-        this.excludedMasks = new HashSet<>();
+        this.sharedFiles = Collections.synchronizedList(new ArrayList<>());
+        this.files = new ConcurrentHashMap<>();
+        this.exclusions = ExclusionMatcher.NONE;
+        this.lastSeen = System.currentTimeMillis();
+    }
+
+    public void touch() {
+        lastSeen = System.currentTimeMillis();
     }
 
     public void addSharedFile(File file) {
@@ -33,27 +39,48 @@ public class Peer {
         sharedFiles.add(file);
     }
 
+    public void removeSharedFile(File file) {
+        sharedFiles.remove(file);
+    }
+
+    // The file it replaces, if any
+    RemoteFile putFile(RemoteFile file) {
+        return files.put(file.key, file);
+    }
+
+    // The file already there, if any, which then stays
+    RemoteFile putFileIfAbsent(RemoteFile file) {
+        return files.putIfAbsent(file.key, file);
+    }
+
+    RemoteFile removeFile(ContentKey key) {
+        return files.remove(key);
+    }
+
+    void clearFiles() {
+        files.clear();
+    }
+
+    public RemoteFile getFile(ContentKey key) {
+        return files.get(key);
+    }
+
+    public Collection<RemoteFile> getFiles() {
+        return Collections.unmodifiableCollection(files.values());
+    }
+
     private boolean isExcluded(File file) {
-        for (File folder : excludedFolders) {
-            if (file.getAbsolutePath().startsWith(folder.getAbsolutePath())) {
-                return true;
-            }
-        }
-        for (String mask : excludedMasks) {
-            if (matchesMask(file.getName(), mask)) {
-                return true;
-            }
-        }
-        return false;
+        return exclusions.isFileExcluded(file);
     }
 
-    private boolean matchesMask(String fileName, String mask) {
-        String regex = mask.replace("*", ".*").replace(".", "\\.");
-        return fileName.matches(regex);
+    // The local node shares its compiled exclusions with its own peer entry
+    public void setExclusions(ExclusionMatcher exclusions) {
+        this.exclusions = exclusions;
     }
 
     public String getPeerID()   { return peerID; }
     public String getIP()       { return ip; }
     public int getPort()        { return port; }
+    public long getLastSeen()   { return lastSeen; }
     public List<File> getSharedFiles()      { return sharedFiles; }
 }
\ No newline at end of file
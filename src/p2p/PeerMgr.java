@@ -2,26 +2,45 @@ package p2p;
 
 import network.FileClient;
 import network.FileClient.FileInfo;
+import network.Metrics;
 
-import java.io.File;
 import java.io.IOException;
 import java.net.*;
-import java.util.Collection;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class PeerMgr {
+    // Told about every change to what the known peers share
+    public interface CatalogListener {
+        void fileAdded(Peer peer, RemoteFile file);
+        void fileRemoved(Peer peer, RemoteFile file);
+    }
+
+    // Each peer holds the last catalog seen from it
     private final Map<String, Peer> peerList;
 
+    // Epoch and version of each peer's catalog as last seen, for asking only for changes
+    private final Map<String, long[]> catalogVersions;
+
     private static final int BROADCAST_LIMIT = 20;
+    private static final long PEER_TTL_MS = 30_000;
     private int broadcastCount = 0;
 
+    private CatalogListener listener;
+
     public PeerMgr() {
-        this.peerList = new HashMap<>();
+        this.peerList = new ConcurrentHashMap<>();
+        this.catalogVersions = new ConcurrentHashMap<>();
+    }
+
+    public void setCatalogListener(CatalogListener listener) {
+        this.listener = listener;
     }
 
     public void clearPeers() {
-        peerList.clear();
+        for (Peer peer : new ArrayList<>(peerList.values())) {
+            removePeer(peer);
+        }
         System.out.println("Cleared peer list.");
     }
 
@@ -32,10 +51,47 @@ public class PeerMgr {
         }
     }
 
+    /**
+     * One discovery round: broadcast for new peers, refresh the catalog of every known
+     * peer and drop the ones that have not answered for {@link #PEER_TTL_MS}.
+     * Only the differences between catalogs reach the listener.
+     */
     public void discoverPeers(String selfIP, int selfPort) {
+        long start = System.nanoTime();
+        for (String ip : broadcast(selfIP, selfPort)) {
+            Peer peer = peerList.get(ip);
+            if (peer == null) {
+                System.out.println("Discovered IP:" + ip);
+                peer = new Peer(ip, ip, 4113);
+                addPeer(peer);
+            }
+            peer.touch();
+        }
+
+        for (Peer peer : new ArrayList<>(peerList.values())) {
+            long asked = System.nanoTime();
+            boolean answered = refreshCatalog(peer);
+            Metrics.histogram("discovery.catalog.ms", peer.getIP()).record((System.nanoTime() - asked) / 1_000_000);
+            if (answered) {
+                peer.touch();
+            }
+        }
+
+        long now = System.currentTimeMillis();
+        for (Peer peer : new ArrayList<>(peerList.values())) {
+            if (now - peer.getLastSeen() > PEER_TTL_MS) {
+                System.out.println("Peer timed out: " + peer.getPeerID());
+                removePeer(peer);
+            }
+        }
+        Metrics.histogram("discovery.round.ms").record((System.nanoTime() - start) / 1_000_000);
+    }
+
+    private Set<String> broadcast(String selfIP, int selfPort) {
+        Set<String> found = new HashSet<>();
         if (broadcastCount >= BROADCAST_LIMIT) {
             System.out.println("Broadcast limit reached-- no more flooding.");
-            return;
+            return found;
         }
         broadcastCount++;
 
@@ -55,17 +111,8 @@ public class PeerMgr {
                     socket.receive(response);
 
                     String discoveredIP = response.getAddress().getHostAddress();
-                    if (!discoveredIP.equals(selfIP) && !peerList.containsKey(discoveredIP)) {
-                        System.out.println("Discovered IP:" + discoveredIP);
-                        Peer newPeer = new Peer(discoveredIP, discoveredIP, 4113);
-                        addPeer(newPeer);
-
-                        var shared = FileClient.requestSharedFiles(discoveredIP, 4113);
-
-                        for (FileInfo info : shared) {
-                            File pseudoFile = new File(info.fileHash + "_" + info.fileName);
-                            newPeer.addSharedFile(pseudoFile);
-                        }
+                    if (!discoveredIP.equals(selfIP)) {
+                        found.add(discoveredIP);
                     }
                 }
                 catch (SocketTimeoutException e) {
@@ -77,7 +124,151 @@ public class PeerMgr {
         catch (IOException e) {
             System.err.println(e.getMessage());
         }
+        return found;
+    }
+
+    // Only the changes since last time if the peer keeps a change log, its full lists otherwise
+    private boolean refreshCatalog(Peer peer) {
+        long[] seen = catalogVersions.getOrDefault(peer.getPeerID(), new long[2]);
+        CatalogPage page = FileClient.requestCatalogPage(peer.getIP(), peer.getPort(), seen[0], seen[1], null);
+        if (page != null) {
+            return applyPages(peer, page);
+        }
+
+        Catalog.Changes changes = FileClient.requestCatalogChanges(peer.getIP(), peer.getPort(), seen[0], seen[1]);
+        if (changes != null) {
+            Metrics.meter("discovery.catalog.entries", peer.getIP()).mark(changes.added.size() + changes.removed.size());
+            if (changes.full) {
+                applyCatalog(peer, toFiles(changes.added));
+            }
+            else {
+                applyChanges(peer, changes.added, changes.removed);
+            }
+            catalogVersions.put(peer.getPeerID(), new long[] { changes.epoch, changes.version });
+            return true;
+        }
+
+        catalogVersions.remove(peer.getPeerID());
+        List<FileInfo> shared = FileClient.requestSharedFiles(peer.getIP(), peer.getPort());
+        if (shared == null) return false;
+        List<FileInfo> all = withPartials(peer, shared);
+        Metrics.meter("discovery.catalog.entries", peer.getIP()).mark(all.size());
+        applyCatalog(peer, toFiles(all));
+        return true;
+    }
+
+    /**
+     * Applies the changes a first page holds, or reads the whole catalog a page at a
+     * time starting with it. The version is the one of the first page, anything that
+     * changed while paging comes again with the next round's changes.
+     */
+    private boolean applyPages(Peer peer, CatalogPage first) {
+        long entries = first.added.size() + first.removed.size();
+        if (first.delta) {
+            applyChanges(peer, first.added, first.removed);
+        }
+        else {
+            // Each page goes in as it arrives, only the keys seen are kept to drop the rest at the end
+            Set<ContentKey> seen = new HashSet<>();
+            CatalogPage page = first;
+            while (true) {
+                for (FileInfo info : page.added) {
+                    RemoteFile file = RemoteFile.of(info);
+                    seen.add(file.key);
+                    if (peer.putFile(file) == null) {
+                        fireAdded(peer, file);
+                    }
+                }
+                if (page.nextCursor == null) break;
+                page = FileClient.requestCatalogPage(peer.getIP(), peer.getPort(), first.epoch, first.version, page.nextCursor);
+                // Restarted meanwhile or gone; the pages so far were real entries, the next round
+                // starts over and drops what is left of the old catalog
+                if (page == null || page.epoch != first.epoch) return page != null;
+                entries += page.added.size();
+            }
+            removeUnseen(peer, seen);
+        }
+        Metrics.meter("discovery.catalog.entries", peer.getIP()).mark(entries);
+        catalogVersions.put(peer.getPeerID(), new long[] { first.epoch, first.version });
+        return true;
+    }
+
+    // Files the peer is still downloading count as well, unless it also has them whole
+    private List<FileInfo> withPartials(Peer peer, List<FileInfo> shared) {
+        List<FileInfo> partials = FileClient.requestPartialFiles(peer.getIP(), peer.getPort());
+        if (partials == null || partials.isEmpty()) return shared;
+
+        Set<String> whole = new HashSet<>();
+        for (FileInfo info : shared) {
+            whole.add(info.fileHash);
+        }
+        List<FileInfo> all = new ArrayList<>(shared);
+        for (FileInfo info : partials) {
+            if (!whole.contains(info.fileHash)) {
+                all.add(info);
+            }
+        }
+        return all;
+    }
+
+    private static Map<ContentKey, RemoteFile> toFiles(Collection<FileInfo> infos) {
+        Map<ContentKey, RemoteFile> files = new HashMap<>();
+        for (FileInfo info : infos) {
+            RemoteFile file = RemoteFile.of(info);
+            files.put(file.key, file);
+        }
+        return files;
+    }
+
+    private void applyCatalog(Peer peer, Map<ContentKey, RemoteFile> next) {
+        for (RemoteFile file : next.values()) {
+            if (peer.putFile(file) == null) {
+                fireAdded(peer, file);
+            }
+        }
+        removeUnseen(peer, next.keySet());
+    }
+
+    private void removeUnseen(Peer peer, Set<ContentKey> seen) {
+        for (RemoteFile file : new ArrayList<>(peer.getFiles())) {
+            if (!seen.contains(file.key) && peer.removeFile(file.key) != null) {
+                fireRemoved(peer, file);
+            }
+        }
+    }
+
+    private void applyChanges(Peer peer, List<FileInfo> added, List<String> removed) {
+        for (FileInfo info : added) {
+            // A file already known may come again with another name, or finished downloading
+            RemoteFile file = RemoteFile.of(info);
+            if (peer.putFile(file) == null) {
+                fireAdded(peer, file);
+            }
+        }
+        for (String fileHash : removed) {
+            RemoteFile file = peer.removeFile(ContentKey.of(fileHash));
+            if (file != null) {
+                fireRemoved(peer, file);
+            }
+        }
+    }
+
+    private void removePeer(Peer peer) {
+        peerList.remove(peer.getPeerID());
+        catalogVersions.remove(peer.getPeerID());
+        for (RemoteFile file : new ArrayList<>(peer.getFiles())) {
+            fireRemoved(peer, file);
+        }
+        peer.clearFiles();
+    }
+
+    private void fireAdded(Peer peer, RemoteFile file) {
+        if (listener != null) listener.fileAdded(peer, file);
+    }
+
+    private void fireRemoved(Peer peer, RemoteFile file) {
+        if (listener != null) listener.fileRemoved(peer, file);
     }
 
     public Collection<Peer> getAllPeers() { return peerList.values(); }
-}
\ No newline at end of file
+}
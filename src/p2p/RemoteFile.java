@@ -0,0 +1,34 @@
+package p2p;
+
+import network.FileClient.FileInfo;
+
+/**
+ * A file a peer offers, as kept for every entry of every known peer's catalog. Names
+ * are interned, so a file offered by many peers keeps one copy of its name.
+ */
+public final class RemoteFile {
+    public final ContentKey key;
+    public final String fileName;
+    public final long fileSize;
+    // Still downloading on the peer
+    public final boolean partial;
+
+    public RemoteFile(ContentKey key, String fileName, long fileSize, boolean partial) {
+        this.key = key;
+        this.fileName = fileName.intern();
+        this.fileSize = fileSize;
+        this.partial = partial;
+    }
+
+    public static RemoteFile of(FileInfo info) {
+        return new RemoteFile(ContentKey.of(info.fileHash), info.fileName, info.fileSize, info.partial);
+    }
+
+    public String getFileHash() {
+        return key.toString();
+    }
+
+    public int chunkCount(int chunkSize) {
+        return ChunkManifest.chunkCount(fileSize, chunkSize);
+    }
+}